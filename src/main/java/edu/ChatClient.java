@@ -0,0 +1,919 @@
+package edu;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Embeddable, non-blocking client for the chat server.
+ *
+ * One NIO connection is driven by a single I/O thread. Every command returns a
+ * future that completes with the server's reply; the server answers commands in
+ * order, so replies are matched to requests first-in first-out. Pushed lines
+ * (MSG, receivedMessage, incomingFile, TASK_EVENT) go to the {@link Listener}
+ * instead. Listener callbacks and future completions run on the I/O thread and
+ * must not block it; an exception thrown by a callback is logged and ignored. If the
+ * I/O thread stops for any other reason the client closes itself, failing every
+ * pending command.
+ *
+ * Commands queued while the I/O thread is busy are written together with one
+ * gathering write. When the connection drops, the client reconnects with
+ * exponential backoff and full jitter, resumes the session with the server's
+ * resume token (or logs in again with the last successful credentials if the
+ * token is no longer accepted) and resumes an interrupted upload from the
+ * server's offset. The server's timing hints win over the backoff: after a
+ * {@code RECONNECT <ms> [token]} push the next attempt is made after that delay
+ * (resuming with the token the server just issued, if any), and an
+ * automatic login answered with {@code LOGIN BUSY <ms>} is retried after it. Other
+ * requests that were already on the wire fail with an IOException, since they
+ * may or may not have been applied; commands not yet written are kept and sent
+ * after the reconnect.
+ *
+ * With {@link #setCompression} every connection starts with {@code compress <mode>};
+ * from the server's reply on both directions are deflate streams, sync-flushed after
+ * each batch of writes. Uploads of already-compressed formats are sent as stored blocks.
+ */
+public class ChatClient implements Closeable {
+
+    public interface Listener {
+        default void onConnected() {}
+        default void onDisconnected(IOException cause) {}
+        default void onChannelMessage(String channel, String message) {}
+        default void onDirectMessage(String sender, String message) {}
+        default void onTaskEvent(String event) {}
+
+        /**
+         * Where the body of a pushed file goes, written as it arrives; null (the default)
+         * skips it. The client closes the channel when the body is complete.
+         */
+        default WritableByteChannel openIncomingFile(String filename, long fileId, long size) throws IOException {
+            return null;
+        }
+
+        /** A pushed file's body has been read; {@code error} is set if opening or writing the sink failed. */
+        default void onIncomingFile(String filename, long fileId, long size, IOException error) {}
+    }
+
+    /** All reply lines of one command. */
+    public record Response(List<String> lines) {
+        public String first() {
+            return lines.isEmpty() ? "" : lines.get(0);
+        }
+    }
+
+    private static final String FRAME_END = "============";
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+    private static final int UPLOAD_CHUNK_BYTES = 64 * 1024;
+    private static final int DEFLATE_CHUNK_BYTES = 16 * 1024;
+
+    private static final class Request {
+        final String command;
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+        final List<String> lines = new ArrayList<>();
+        final Upload upload;
+        final boolean internal;
+        final boolean barrier;
+        boolean framed;
+        Path download;   // getFile target
+
+        Request(String command, Upload upload, boolean internal) {
+            this(command, upload, internal, upload != null);
+        }
+
+        Request(String command, Upload upload, boolean internal, boolean barrier) {
+            this.command = command;
+            this.upload = upload;
+            this.internal = internal;
+            this.barrier = barrier;
+        }
+    }
+
+    private static final class Upload {
+        final Path path;
+        final long size;
+        final boolean precompressed;
+        String transferId;
+        long position;
+        FileChannel file;
+
+        Upload(Path path, long size) {
+            this.path = path;
+            this.size = size;
+            this.precompressed = StreamCompression.isPrecompressed(path.getFileName().toString());
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final Thread ioThread;
+    private final Deque<Request> outbox = new ConcurrentLinkedDeque<>();
+    private final Deque<Request> inflight = new ArrayDeque<>();
+    private final Deque<ByteBuffer> pendingWrites = new ArrayDeque<>();
+    private final CompletableFuture<Void> firstConnect = new CompletableFuture<>();
+
+    private volatile Listener listener = new Listener() {};
+    private volatile boolean closed;
+    private volatile String username;
+    private volatile String password;
+    private volatile StreamCompression.Mode compression;
+    private volatile String resumeToken;
+
+    private long initialBackoffMs = 250;
+    private long maxBackoffMs = 30_000;
+
+    // I/O thread state
+    private Selector selector;
+    private SocketChannel channel;
+    private boolean connected;
+    private int failedAttempts;
+    private long nextConnectAt;
+    private Request barrier;   // nothing else may be written until this request's reply (or upload body) is through
+    private Upload streaming;
+    private Deflater deflater;
+    private Inflater inflater;
+    private boolean deflatePending;
+    private long reconnectHintMs = -1;
+    private Request delayed;         // automatic login to send again at delayedAt, after LOGIN BUSY
+    private long delayedAt;
+    private final ByteBuffer inflated = ByteBuffer.allocate(READ_BUFFER_BYTES);
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_BYTES);
+    private final ByteArrayOutputStream lineBytes = new ByteArrayOutputStream(256);
+    private WritableByteChannel binarySink;   // null: the body is skipped
+    private IOException binaryError;
+    private long binaryRemaining;
+    private String binaryHeader;
+
+    public ChatClient(String host, int port) {
+        this.host = host;
+        this.port = port;
+        this.ioThread = new Thread(this::runLoop, "chat-client-io");
+        this.ioThread.setDaemon(true);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public void setBackoff(long initialMs, long maxMs) {
+        this.initialBackoffMs = initialMs;
+        this.maxBackoffMs = maxMs;
+    }
+
+    /**
+     * Compresses every following connection with {@code deflate} or {@code fast};
+     * {@code none} (or null) turns it off. Call before {@link #connect()}.
+     */
+    public void setCompression(String mode) {
+        if (mode == null || mode.equalsIgnoreCase("none")) {
+            this.compression = null;
+            return;
+        }
+        StreamCompression.Mode parsed = StreamCompression.Mode.parse(mode);
+        if (parsed == null) {
+            throw new IllegalArgumentException("Unknown compression mode: " + mode);
+        }
+        this.compression = parsed;
+    }
+
+    /** Starts the I/O thread; the future completes on the first successful connect. */
+    public CompletableFuture<Void> connect() throws IOException {
+        selector = Selector.open();
+        ioThread.start();
+        return firstConnect;
+    }
+
+    public CompletableFuture<Response> send(String command) {
+        return enqueue(new Request(command, null, false), false);
+    }
+
+    /** Logs in and, on success, remembers the credentials for automatic re-login. */
+    public CompletableFuture<Response> login(String user, String pass) {
+        return send("login " + user + " " + pass).thenApply(response -> {
+            if (response.first().startsWith("LOGIN OK")) {
+                username = user;
+                password = pass;
+                resumeToken = tokenOf(response.first());
+            }
+            return response;
+        });
+    }
+
+    public CompletableFuture<Response> register(String user, String pass) {
+        return send("register " + user + " " + pass);
+    }
+
+    /**
+     * Sends bulkCreateTasks / bulkAssignTasks with all item lines in the same write;
+     * completes with the framed summary.
+     */
+    public CompletableFuture<Response> sendBulk(String command, List<String> items) {
+        StringBuilder text = new StringBuilder(command).append(' ').append(items.size());
+        for (String item : items) {
+            text.append('\n').append(item);
+        }
+        return send(text.toString());
+    }
+
+    /** Uploads a file; completes with the "FILE SENT &lt;fileId&gt;" reply once the server has stored it. */
+    public CompletableFuture<Response> uploadFile(String type, String destination, Path path) throws IOException {
+        long size = Files.size(path);
+        String command = "sendFile " + type + " " + destination + " " + path.getFileName() + " " + size;
+        return enqueue(new Request(command, new Upload(path, size), false), false);
+    }
+
+    /**
+     * Downloads a stored file, or the part of it from {@code offset} on, into {@code target}
+     * at the same offset, so an interrupted download can be continued from the target's size.
+     * The body is streamed to disk as it arrives. Completes with the "FILE ..." header line,
+     * or with the server's error reply if there is no body.
+     */
+    public CompletableFuture<Response> getFile(long fileId, long offset, Path target) {
+        Request request = new Request("getFile " + fileId + " " + offset, null, false);
+        request.download = target;
+        return enqueue(request, false);
+    }
+
+    private CompletableFuture<Response> enqueue(Request request, boolean first) {
+        if (closed) {
+            request.future.completeExceptionally(new IOException("Client is closed"));
+            return request.future;
+        }
+        if (first) {
+            outbox.addFirst(request);
+        } else {
+            outbox.addLast(request);
+        }
+        if (closed && outbox.remove(request)) {
+            // closed while we were queueing, the I/O thread may already have drained the outbox
+            request.future.completeExceptionally(new IOException("Client is closed"));
+            return request.future;
+        }
+        if (selector != null) {
+            selector.wakeup();
+        }
+        return request.future;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    private void runLoop() {
+        try {
+            while (!closed) {
+                long now = System.currentTimeMillis();
+                if (channel == null && now >= nextConnectAt) {
+                    startConnect();
+                }
+                if (delayed != null && now >= delayedAt) {
+                    barrier = null;
+                    outbox.addFirst(delayed);
+                    delayed = null;
+                }
+                long timeout = channel == null ? Math.max(1, nextConnectAt - now)
+                        : delayed != null ? Math.max(1, delayedAt - now) : 0;
+                selector.select(timeout);
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isConnectable()) finishConnect();
+                        if (key.isValid() && key.isReadable()) readAvailable();
+                        if (key.isValid() && key.isWritable()) flushWrites();
+                    } catch (IOException e) {
+                        disconnected(e);
+                    } catch (RuntimeException e) {
+                        // a bug or a reply we cannot make sense of: drop this connection, not the client
+                        disconnected(new IOException("Unexpected failure on the connection", e));
+                    }
+                }
+
+                if (connected) {
+                    try {
+                        flushWrites();
+                    } catch (IOException e) {
+                        disconnected(e);
+                    } catch (RuntimeException e) {
+                        disconnected(new IOException("Unexpected failure on the connection", e));
+                    }
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            if (!closed) {
+                e.printStackTrace();
+            }
+        } catch (RuntimeException | Error e) {
+            e.printStackTrace();
+        } finally {
+            // whatever ended the loop, nothing will be sent any more: refuse new
+            // commands and fail everything that is still waiting
+            closed = true;
+            shutdown();
+        }
+    }
+
+    private void startConnect() {
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            if (channel.connect(new InetSocketAddress(host, port))) {
+                channel.register(selector, SelectionKey.OP_READ);
+                onConnected();
+            } else {
+                channel.register(selector, SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException e) {
+            disconnected(e);
+        }
+    }
+
+    private void finishConnect() throws IOException {
+        if (channel.finishConnect()) {
+            channel.register(selector, SelectionKey.OP_READ);
+            onConnected();
+        }
+    }
+
+    private void onConnected() {
+        connected = true;
+        failedAttempts = 0;
+        // session resume: sign in before anything that was queued while we were away; this
+        // is a barrier so that a refused token can still be followed by a login
+        String token = resumeToken;
+        if (token != null) {
+            enqueue(new Request("resume " + token, null, true, true), true);
+        } else if (username != null) {
+            enqueue(loginRequest(), true);
+        }
+        // ...and negotiate compression before even that
+        StreamCompression.Mode mode = compression;
+        if (mode != null) {
+            enqueue(new Request("compress " + mode.name().toLowerCase(), null, true, true), true);
+        }
+        notifyListener(Listener::onConnected);
+        firstConnect.complete(null);
+    }
+
+    private void disconnected(IOException cause) {
+        boolean wasConnected = connected;
+        connected = false;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+            channel = null;
+        }
+        pendingWrites.clear();
+        readBuffer.clear();   // a read that failed half-way must not be replayed on the next connection
+        lineBytes.reset();
+        closeBinarySink();
+        binaryRemaining = 0;
+        barrier = null;
+        streaming = null;
+        delayed = null;
+        endCompression();
+
+        // an interrupted upload goes back to the front of the queue, as a resume when
+        // the server already handed out a transfer id; everything else in flight failed
+        Request resumable = null;
+        for (Request request : inflight) {
+            if (request.upload != null && resumable == null) {
+                resumable = request;
+                closeUploadFile(request.upload);
+            } else if (!request.internal) {
+                request.future.completeExceptionally(new IOException("Connection lost before a reply to: " + request.command, cause));
+            }
+        }
+        inflight.clear();
+        if (resumable != null) {
+            Upload upload = resumable.upload;
+            Request retry = upload.transferId != null
+                    ? new Request("resumeFile " + upload.transferId, upload, false)
+                    : new Request(resumable.command, upload, false);
+            Request original = resumable;
+            retry.future.whenComplete((response, error) -> {
+                if (error != null) original.future.completeExceptionally(error);
+                else original.future.complete(response);
+            });
+            outbox.addFirst(retry);
+        }
+
+        long ceiling = Math.min(maxBackoffMs, initialBackoffMs << Math.min(failedAttempts, 16));
+        failedAttempts++;
+        if (reconnectHintMs >= 0) {
+            // the server picked (and jittered) the delay when it shut down
+            nextConnectAt = System.currentTimeMillis() + reconnectHintMs;
+            reconnectHintMs = -1;
+        } else {
+            nextConnectAt = System.currentTimeMillis() + ThreadLocalRandom.current().nextLong(ceiling + 1);
+        }
+
+        if (wasConnected) {
+            notifyListener(l -> l.onDisconnected(cause));
+        }
+    }
+
+    private void flushWrites() throws IOException {
+        while (true) {
+            // batch every queued command up to the next upload barrier
+            while (barrier == null) {
+                Request request = outbox.pollFirst();
+                if (request == null) break;
+                queueOutgoing(StandardCharsets.UTF_8.encode(request.command + "\n"));
+                inflight.addLast(request);
+                if (request.barrier) {
+                    barrier = request;
+                }
+            }
+            if (deflatePending) {
+                syncFlush();
+            }
+
+            if (pendingWrites.isEmpty()) {
+                if (streaming == null) break;
+                // next chunk of the upload, or lift the barrier once it is all sent
+                fillUploadChunk();
+                continue;
+            }
+
+            channel.write(pendingWrites.toArray(new ByteBuffer[0]));
+            while (!pendingWrites.isEmpty() && !pendingWrites.peekFirst().hasRemaining()) {
+                pendingWrites.pollFirst();
+            }
+            if (!pendingWrites.isEmpty()) {
+                // socket buffer is full, continue when it drains
+                channel.keyFor(selector).interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+        channel.keyFor(selector).interestOps(SelectionKey.OP_READ);
+    }
+
+    private void fillUploadChunk() throws IOException {
+        Upload upload = streaming;
+        if (upload.position >= upload.size) {
+            closeUploadFile(upload);
+            streaming = null;
+            barrier = null;
+            if (deflater != null && upload.precompressed) {
+                deflater.setLevel(compression.level);
+            }
+            return;
+        }
+        if (upload.file == null) {
+            upload.file = FileChannel.open(upload.path, StandardOpenOption.READ);
+            if (deflater != null && upload.precompressed) {
+                deflater.setLevel(Deflater.NO_COMPRESSION);
+            }
+        }
+        ByteBuffer chunk = ByteBuffer.allocate((int) Math.min(UPLOAD_CHUNK_BYTES, upload.size - upload.position));
+        while (chunk.hasRemaining()) {
+            if (upload.file.read(chunk, upload.position + chunk.position()) == -1) {
+                throw new IOException(upload.path + " shrank during upload");
+            }
+        }
+        chunk.flip();
+        upload.position += chunk.remaining();
+        queueOutgoing(chunk);
+    }
+
+    private void queueOutgoing(ByteBuffer plain) {
+        if (deflater == null) {
+            pendingWrites.addLast(plain);
+            return;
+        }
+        deflater.setInput(plain);
+        while (!deflater.needsInput()) {
+            drainDeflater(Deflater.NO_FLUSH);
+        }
+        deflatePending = true;
+    }
+
+    private void syncFlush() {
+        deflatePending = false;
+        while (drainDeflater(Deflater.SYNC_FLUSH) == DEFLATE_CHUNK_BYTES) {
+            // a full chunk means there may be more flushed output
+        }
+    }
+
+    private int drainDeflater(int flushMode) {
+        ByteBuffer out = ByteBuffer.allocate(DEFLATE_CHUNK_BYTES);
+        int n = deflater.deflate(out, flushMode);
+        if (n > 0) {
+            out.flip();
+            pendingWrites.addLast(out);
+        }
+        return n;
+    }
+
+    private void startCompression() {
+        deflater = new Deflater(compression.level);
+        inflater = new Inflater();
+    }
+
+    private void endCompression() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        deflatePending = false;
+    }
+
+    private static void closeUploadFile(Upload upload) {
+        if (upload.file != null) {
+            try {
+                upload.file.close();
+            } catch (IOException ignored) {
+            }
+            upload.file = null;
+        }
+    }
+
+    private void readAvailable() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read == -1) {
+            throw new IOException("Server closed the connection");
+        }
+        readBuffer.flip();
+        if (inflater == null) {
+            consume(readBuffer);
+        }
+        if (inflater != null && readBuffer.hasRemaining()) {
+            // the rest of this read (all of it, once compression is on) is deflate data
+            inflater.setInput(readBuffer.array(), readBuffer.position(), readBuffer.remaining());
+            readBuffer.position(readBuffer.limit());
+            int n;
+            do {
+                inflated.clear();
+                try {
+                    n = inflater.inflate(inflated);
+                } catch (DataFormatException e) {
+                    throw new IOException("Corrupt compressed stream", e);
+                }
+                inflated.flip();
+                consume(inflated);
+            } while (n > 0 && inflater != null);
+        }
+        readBuffer.clear();
+    }
+
+    private void consume(ByteBuffer data) throws IOException {
+        boolean plain = inflater == null;
+        while (data.hasRemaining()) {
+            if (binaryRemaining > 0) {
+                int n = (int) Math.min(binaryRemaining, data.remaining());
+                writeBinary(data.slice(data.position(), n));
+                data.position(data.position() + n);
+                binaryRemaining -= n;
+                if (binaryRemaining == 0) {
+                    binaryComplete();
+                }
+                continue;
+            }
+            byte b = data.get();
+            if (b == '\n') {
+                String line = lineBytes.toString(StandardCharsets.UTF_8);
+                lineBytes.reset();
+                if (line.endsWith("\r")) {
+                    line = line.substring(0, line.length() - 1);
+                }
+                handleLine(line);
+                if (plain && inflater != null) {
+                    return; // COMPRESS OK: everything after it is compressed
+                }
+            } else {
+                lineBytes.write(b);
+            }
+        }
+    }
+
+    private void handleLine(String line) throws IOException {
+        if (line.startsWith("MSG #")) {
+            int colon = line.indexOf(": ");
+            if (colon > 0) {
+                String channelName = line.substring(5, colon);
+                String message = line.substring(colon + 2);
+                notifyListener(l -> l.onChannelMessage(channelName, message));
+                return;
+            }
+        }
+        if (line.startsWith("receivedMessage ")) {
+            String[] parts = line.split(" ", 3);
+            String message = parts.length > 2 ? parts[2] : "";
+            if (message.length() >= 2 && message.startsWith("\"") && message.endsWith("\"")) {
+                message = message.substring(1, message.length() - 1);
+            }
+            String sender = parts.length > 1 ? parts[1] : "";
+            String text = message;
+            notifyListener(l -> l.onDirectMessage(sender, text));
+            return;
+        }
+        if (line.startsWith("RECONNECT ")) {
+            // RECONNECT <ms> [token]
+            String[] parts = line.split(" ");
+            reconnectHintMs = parseHint(parts.length > 2 ? line.substring(0, line.lastIndexOf(' ')) : line);
+            if (parts.length > 2 && resumeToken != null) {
+                resumeToken = parts[2];
+            }
+            return;
+        }
+        if (line.startsWith("TASK_EVENT ")) {
+            String event = line.substring("TASK_EVENT ".length());
+            notifyListener(l -> l.onTaskEvent(event));
+            return;
+        }
+        if (line.startsWith("incomingFile ")) {
+            // incomingFile <filename> <size> <fileId>
+            String[] parts = fields(line, 3);
+            long size = parseLength(line, parts[2]);
+            WritableByteChannel sink = null;
+            IOException error = null;
+            try {
+                sink = listener.openIncomingFile(parts[1], incomingFileId(parts), size);
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException("openIncomingFile failed", e);
+            }
+            startBinary(line, size, sink, error);
+            return;
+        }
+
+        Request request = inflight.peekFirst();
+        if (request == null) {
+            return; // nothing is waiting for this line
+        }
+        if (request.internal && (line.startsWith("LOGIN ") || line.startsWith("RESUME "))) {
+            handleSignInReply(request, line);
+            return;
+        }
+        if (request.upload != null && line.startsWith("READY_FOR_FILE ")) {
+            String[] parts = fields(line, 3);
+            request.upload.transferId = parts[1];
+            request.upload.position = parseLength(line, parts[2]);
+            streaming = request.upload;
+            return;
+        }
+        if (line.startsWith("COMPRESS OK ") && request.internal && request.command.startsWith("compress ")
+                && !line.endsWith(" none")) {
+            startCompression();
+        }
+        if (line.startsWith("FILE ") && request.command.startsWith("getFile ")) {
+            // FILE <fileId> <filename> <size> <offset> <length>
+            request.lines.add(line);
+            String[] parts = fields(line, 6);
+            long offset = parseLength(line, parts[4]);
+            long length = parseLength(line, parts[5]);
+            FileChannel sink = null;
+            IOException error = null;
+            if (request.download != null) {
+                try {
+                    sink = FileChannel.open(request.download, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    sink.truncate(offset);
+                    sink.position(offset);
+                } catch (IOException e) {
+                    error = e;
+                    closeQuietly(sink);
+                    sink = null;
+                }
+            }
+            startBinary(line, length, sink, error);
+            return;
+        }
+
+        request.lines.add(line);
+        if (request.lines.size() == 1 && line.startsWith("=== ")) {
+            request.framed = true;
+        }
+        if (!request.framed || line.equals(FRAME_END)) {
+            completeHead();
+        }
+    }
+
+    private void handleSignInReply(Request request, String line) {
+        if (line.startsWith("LOGIN OK") || line.startsWith("RESUME OK")) {
+            // LOGIN OK <token> / RESUME OK <token> <replayed>
+            resumeToken = tokenOf(line);
+        } else if (line.startsWith("LOGIN BUSY")) {
+            inflight.pollFirst();
+            delayed = loginRequest();
+            delayedAt = System.currentTimeMillis() + parseHint(line);
+            barrier = delayed; // hold everything else back until the retry
+            return;
+        } else if (line.startsWith("RESUME ")) {
+            // RESUME EXPIRED / RESUME FAILED: fall back to the password
+            resumeToken = null;
+            if (username != null) {
+                enqueue(loginRequest(), true);
+            }
+        } else {
+            resumeToken = null;
+            username = null;
+            password = null;
+        }
+        request.lines.add(line);
+        completeHead();
+    }
+
+    private Request loginRequest() {
+        return new Request("login " + username + " " + password, null, true, true);
+    }
+
+    private static String tokenOf(String reply) {
+        String[] parts = reply.split(" ");
+        return parts.length > 2 ? parts[2] : null;
+    }
+
+    private static String[] fields(String line, int expected) throws IOException {
+        String[] parts = line.split(" ");
+        if (parts.length < expected) {
+            throw new IOException("Malformed line from server: " + line);
+        }
+        return parts;
+    }
+
+    /**
+     * A size or offset from the server. A line with a garbled one cannot be skipped
+     * (the body length is unknown), so it ends the connection.
+     */
+    private static long parseLength(String line, String field) throws IOException {
+        try {
+            long value = Long.parseLong(field);
+            if (value >= 0) {
+                return value;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IOException("Malformed line from server: " + line);
+    }
+
+    private static long incomingFileId(String[] parts) {
+        try {
+            return parts.length > 3 ? Long.parseLong(parts[3]) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Listener code is the embedding application's; an exception from it must not take
+    // down the I/O thread, and with it every pending and future request.
+    private void notifyListener(Consumer<Listener> call) {
+        try {
+            call.accept(listener);
+        } catch (RuntimeException e) {
+            System.err.println("Chat client listener failed: " + e);
+            e.printStackTrace();
+        }
+    }
+
+    private static long parseHint(String line) {
+        try {
+            return Math.max(0, Long.parseLong(line.substring(line.lastIndexOf(' ') + 1)));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    // Bodies go straight to their sink, never into memory; without a sink they are skipped.
+    private void startBinary(String header, long length, WritableByteChannel sink, IOException error) {
+        binaryHeader = header;
+        binarySink = sink;
+        binaryError = error;
+        binaryRemaining = length;
+        if (length == 0) {
+            binaryComplete();
+        }
+    }
+
+    private void writeBinary(ByteBuffer chunk) {
+        if (binarySink == null) {
+            return;
+        }
+        try {
+            while (chunk.hasRemaining()) {
+                binarySink.write(chunk);
+            }
+        } catch (IOException e) {
+            // keep reading the body off the wire, or the stream falls out of step
+            binaryError = e;
+            closeBinarySink();
+        }
+    }
+
+    private void binaryComplete() {
+        closeBinarySink();
+        IOException error = binaryError;
+        binaryError = null;
+        String[] parts = binaryHeader.split(" ");
+        if (binaryHeader.startsWith("incomingFile ")) {
+            long fileId = incomingFileId(parts);
+            long size = Long.parseLong(parts[2]);   // checked when the body started
+            notifyListener(l -> l.onIncomingFile(parts[1], fileId, size, error));
+        } else if (error != null) {
+            Request request = inflight.pollFirst();
+            if (request != null) {
+                request.future.completeExceptionally(error);
+            }
+        } else {
+            completeHead();
+        }
+    }
+
+    private void closeBinarySink() {
+        if (binarySink != null) {
+            try {
+                binarySink.close();
+            } catch (IOException e) {
+                if (binaryError == null) {
+                    binaryError = e;
+                }
+            }
+            binarySink = null;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void completeHead() {
+        Request request = inflight.pollFirst();
+        if (request == null) return;
+        if (request.upload != null) {
+            closeUploadFile(request.upload);
+        }
+        if (request == barrier) {
+            // compress answered, or the server refused an upload before any bytes were sent
+            barrier = null;
+            streaming = null;
+        }
+        request.future.complete(new Response(List.copyOf(request.lines)));
+    }
+
+    private void shutdown() {
+        IOException closedError = new IOException("Client is closed");
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+        for (Request request : inflight) {
+            request.future.completeExceptionally(closedError);
+        }
+        Request request;
+        while ((request = outbox.pollFirst()) != null) {
+            request.future.completeExceptionally(closedError);
+        }
+        firstConnect.completeExceptionally(closedError);
+        endCompression();
+        closeBinarySink();
+        try {
+            selector.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package edu;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.security.SecureRandom;
+import java.util.HexFormat;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+
+/**
+ * On-disk state for resumable uploads and the finished files they produce.
+ *
+ * <pre>
+ *   &lt;dir&gt;/partial/&lt;transferId&gt;.meta   who is sending what to whom, and the total size
+ *   &lt;dir&gt;/partial/&lt;transferId&gt;.part   the bytes received so far
+ *   &lt;dir&gt;/stored/&lt;transferId&gt;         complete uploads, referenced by files.storage_path
+ * </pre>
+ *
+ * The length of the .part file is the acknowledged offset: a resumed upload continues
+ * from there. Partial transfers that see no progress for {@code file.transfer.partial.hours}
+ * (default 24) are removed. Uploads larger than {@code file.max.bytes} (default 1 GiB)
+ * are refused before anything is written.
+ */
+public class FileTransferStore {
+
+    record Transfer(String id, String sender, String type, String destination, String filename, long size) {}
+
+    private static final int CHUNK_BYTES = 64 * 1024;
+    private static final long FORCE_EVERY_BYTES = 8L * 1024 * 1024;
+    private static final long PURGE_INTERVAL_MS = TimeUnit.HOURS.toMillis(1);
+
+    private final Path partialDir;
+    private final Path storedDir;
+    private final long partialMaxAgeMs;
+    private final long maxFileBytes;
+    private final SecureRandom random = new SecureRandom();
+    private volatile long lastPurge;
+
+    public FileTransferStore(Path dir, long partialMaxAgeMs, long maxFileBytes) throws IOException {
+        this.partialDir = dir.resolve("partial");
+        this.storedDir = dir.resolve("stored");
+        this.partialMaxAgeMs = partialMaxAgeMs;
+        this.maxFileBytes = maxFileBytes;
+        Files.createDirectories(partialDir);
+        Files.createDirectories(storedDir);
+        purgeStale();
+    }
+
+    public static FileTransferStore fromSystemProperties() throws IOException {
+        return new FileTransferStore(Paths.get(System.getProperty("file.transfer.dir", "transfers")),
+                TimeUnit.HOURS.toMillis(Long.getLong("file.transfer.partial.hours", 24)),
+                Long.getLong("file.max.bytes", 1L << 30));
+    }
+
+    public long maxFileBytes() {
+        return maxFileBytes;
+    }
+
+    public Transfer begin(String sender, String type, String destination, String filename, long size) throws IOException {
+        if (size > maxFileBytes) {
+            throw new IOException("Upload of " + size + " bytes is over file.max.bytes (" + maxFileBytes + ")");
+        }
+        if (System.currentTimeMillis() - lastPurge > PURGE_INTERVAL_MS) {
+            purgeStale();
+        }
+
+        byte[] idBytes = new byte[8];
+        random.nextBytes(idBytes);
+        Transfer transfer = new Transfer(HexFormat.of().formatHex(idBytes), sender, type, destination, filename, size);
+
+        Properties meta = new Properties();
+        meta.setProperty("sender", sender);
+        meta.setProperty("type", type);
+        meta.setProperty("destination", destination);
+        meta.setProperty("filename", filename);
+        meta.setProperty("size", Long.toString(size));
+        try (OutputStream metaOut = Files.newOutputStream(metaPath(transfer.id()))) {
+            meta.store(metaOut, null);
+        }
+        Files.createFile(partPath(transfer.id()));
+        return transfer;
+    }
+
+    /** The unfinished transfer with this id, or null if it is unknown, finished or expired. */
+    public Transfer find(String transferId) throws IOException {
+        if (!transferId.matches("[0-9a-f]{16}")) {
+            return null;
+        }
+        Path metaPath = metaPath(transferId);
+        if (!Files.exists(metaPath)) {
+            return null;
+        }
+        Properties meta = new Properties();
+        try (InputStream metaIn = Files.newInputStream(metaPath)) {
+            meta.load(metaIn);
+        }
+        return new Transfer(transferId, meta.getProperty("sender"), meta.getProperty("type"),
+                meta.getProperty("destination"), meta.getProperty("filename"), Long.parseLong(meta.getProperty("size")));
+    }
+
+    /**
+     * Bytes already received. An upload whose data was moved to stored/ but whose
+     * files row was never written (crash in between) counts as fully received.
+     */
+    public long offset(Transfer transfer) throws IOException {
+        Path part = partPath(transfer.id());
+        if (Files.exists(part)) {
+            return Files.size(part);
+        }
+        return Files.exists(storedPath(transfer.id())) ? transfer.size() : 0;
+    }
+
+    /**
+     * Appends the rest of the upload, starting at {@code offset}, from {@code in}.
+     * If the stream ends early an EOFException is thrown and everything received up
+     * to that point stays on disk for a later resume.
+     */
+    public void receive(Transfer transfer, InputStream in, long offset) throws IOException {
+        if (offset >= transfer.size()) {
+            return;
+        }
+        try (FileChannel part = FileChannel.open(partPath(transfer.id()), StandardOpenOption.WRITE)) {
+            part.truncate(offset);
+            part.position(offset);
+
+            byte[] chunk = new byte[CHUNK_BYTES];
+            long remaining = transfer.size() - offset;
+            long unforced = 0;
+            while (remaining > 0) {
+                int read = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (read == -1) {
+                    part.force(false);
+                    throw new EOFException("Upload " + transfer.id() + " interrupted at byte " + (transfer.size() - remaining));
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, read);
+                while (buffer.hasRemaining()) {
+                    part.write(buffer);
+                }
+                remaining -= read;
+                unforced += read;
+                if (unforced >= FORCE_EVERY_BYTES) {
+                    part.force(false);
+                    unforced = 0;
+                }
+            }
+            part.force(false);
+        }
+    }
+
+    /** Moves a fully received upload into stored/ and returns its final path. */
+    public Path complete(Transfer transfer) throws IOException {
+        Path stored = storedPath(transfer.id());
+        Path part = partPath(transfer.id());
+        if (Files.exists(part)) {
+            Files.move(part, stored, StandardCopyOption.ATOMIC_MOVE);
+        }
+        return stored;
+    }
+
+    /** Forgets the transfer once its files row is committed. */
+    public void finish(Transfer transfer) throws IOException {
+        Files.deleteIfExists(metaPath(transfer.id()));
+    }
+
+    private void purgeStale() throws IOException {
+        lastPurge = System.currentTimeMillis();
+        long cutoff = lastPurge - partialMaxAgeMs;
+        try (Stream<Path> files = Files.list(partialDir)) {
+            for (Path file : files.toList()) {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(".meta")) continue;
+                String id = name.substring(0, name.length() - ".meta".length());
+                Path part = partPath(id);
+                Path newest = Files.exists(part) ? part : file;
+                if (Files.getLastModifiedTime(newest).toMillis() < cutoff) {
+                    Files.deleteIfExists(part);
+                    Files.deleteIfExists(file);
+                    System.out.println("Removed stale partial upload " + id);
+                }
+            }
+        }
+    }
+
+    private Path metaPath(String id) {
+        return partialDir.resolve(id + ".meta");
+    }
+
+    private Path partPath(String id) {
+        return partialDir.resolve(id + ".part");
+    }
+
+    private Path storedPath(String id) {
+        return storedDir.resolve(id);
+    }
+}
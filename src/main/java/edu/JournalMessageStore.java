@@ -0,0 +1,350 @@
+package edu;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+
+/**
+ * Append-only message journal made of memory-mapped segment files.
+ *
+ * Segments are named after the id of their first record and preallocated to a fixed
+ * size; an all-zero length field marks the end of the written part. Every record is
+ *
+ * <pre>
+ *   int length | int crc32(payload) | payload
+ *   payload = long id | long timestampMillis | byte kind | short keyLen | key
+ *             | short senderLen | sender | int messageLen | message      (UTF-8)
+ * </pre>
+ *
+ * The length is written last, so a record only becomes visible once it is complete.
+ * On open every segment is scanned and CRC-checked; a torn or corrupt tail in the
+ * newest segment is zeroed and appending resumes there.
+ *
+ * Ids are one global sequence. Each channel ("#name") and inbox ("@user") keeps a
+ * sparse in-memory index with the position of every {@value #SPARSE_EVERY}th record,
+ * which bounds how far a read has to scan before it reaches its first match.
+ *
+ * Durability: records live in the page cache as soon as they are written, so they
+ * survive a crash of the server process; segments are forced to disk when they roll
+ * and on close.
+ */
+public class JournalMessageStore implements MessageStore {
+
+    private static final byte KIND_CHANNEL = 0;
+    private static final byte KIND_DIRECT = 1;
+    private static final int RECORD_HEADER = 8;
+    private static final int SPARSE_EVERY = 32;
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final class Segment {
+        final long baseId;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int writePosition;
+
+        Segment(long baseId, FileChannel channel, MappedByteBuffer buffer) {
+            this.baseId = baseId;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+
+    private static final class KeyIndex {
+        final List<long[]> entries = new ArrayList<>(); // {id, segment number, position}
+        long count;
+        long lastId;
+    }
+
+    private record Entry(long id, long timestampMillis, byte kind, String key, String sender, String message, int next) {}
+
+    private final Path dir;
+    private final int segmentBytes;
+    private final List<Segment> segments = new ArrayList<>();
+    private final Map<String, KeyIndex> keyIndexes = new HashMap<>();
+    private final CRC32 crc = new CRC32();
+    private long nextId = 1;
+    private long lastChannelId;
+    private long lastDirectId;
+
+    public JournalMessageStore(Path dir, int segmentBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        Files.createDirectories(dir);
+
+        long start = System.nanoTime();
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(dir)) {
+            files = listing.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            long baseId = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            segments.add(openSegment(file, baseId));
+        }
+        for (int i = 0; i < segments.size(); i++) {
+            recover(i, i == segments.size() - 1);
+        }
+        if (segments.isEmpty()) {
+            roll();
+        }
+        System.out.printf("Message journal: %d segment(s), next id %d, recovered in %d ms%n",
+                segments.size(), nextId, (System.nanoTime() - start) / 1_000_000);
+    }
+
+    @Override
+    public long appendChannelMessage(String sender, String channel, String message) throws IOException {
+        return append(KIND_CHANNEL, "#" + channel, sender, message);
+    }
+
+    @Override
+    public long appendDirectMessage(String sender, String receiver, String message) throws IOException {
+        return append(KIND_DIRECT, "@" + receiver, sender, message);
+    }
+
+    @Override
+    public List<StoredMessage> readChannel(String channel, long afterId, int limit) {
+        return read("#" + channel, afterId, limit);
+    }
+
+    @Override
+    public List<StoredMessage> readDirect(String receiver, long afterId, int limit) {
+        return read("@" + receiver, afterId, limit);
+    }
+
+    @Override
+    public synchronized long lastChannelMessageId() {
+        return lastChannelId;
+    }
+
+    @Override
+    public synchronized long lastDirectMessageId() {
+        return lastDirectId;
+    }
+
+    /** Scans from the segment that holds {@code afterId + 1}; ids are global, so no per-key index helps here. */
+    @Override
+    public synchronized List<StoredMessage> readAllChannels(long afterId, int limit) {
+        List<StoredMessage> messages = new ArrayList<>();
+        if (lastChannelId <= afterId || limit <= 0) {
+            return messages;
+        }
+        int segmentNumber = 0;
+        while (segmentNumber + 1 < segments.size() && segments.get(segmentNumber + 1).baseId <= afterId + 1) {
+            segmentNumber++;
+        }
+        for (; segmentNumber < segments.size(); segmentNumber++) {
+            Segment segment = segments.get(segmentNumber);
+            int position = 0;
+            while (position < segment.writePosition) {
+                Entry entry = decode(segment.buffer, position);
+                if (entry.id() > afterId && entry.kind() == KIND_CHANNEL) {
+                    messages.add(new StoredMessage(entry.id(), entry.sender(), entry.key().substring(1),
+                            entry.message(), entry.timestampMillis()));
+                    if (messages.size() == limit) {
+                        return messages;
+                    }
+                }
+                position = entry.next();
+            }
+        }
+        return messages;
+    }
+
+    private synchronized long append(byte kind, String key, String sender, String message) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] senderBytes = sender.getBytes(StandardCharsets.UTF_8);
+        byte[] messageBytes = message.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > Short.MAX_VALUE || senderBytes.length > Short.MAX_VALUE) {
+            throw new IOException("Channel, user or sender name too long for the journal");
+        }
+
+        int payloadLength = 8 + 8 + 1 + 2 + keyBytes.length + 2 + senderBytes.length + 4 + messageBytes.length;
+        // room for the record plus the zero length that terminates the segment
+        int needed = RECORD_HEADER + payloadLength + 4;
+        if (needed > segmentBytes) {
+            throw new IOException("Message of " + messageBytes.length + " bytes does not fit a journal segment");
+        }
+
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.writePosition + needed > segment.buffer.capacity()) {
+            roll();
+            segment = segments.get(segments.size() - 1);
+        }
+
+        long id = nextId;
+        ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+        payload.putLong(id);
+        payload.putLong(System.currentTimeMillis());
+        payload.put(kind);
+        payload.putShort((short) keyBytes.length).put(keyBytes);
+        payload.putShort((short) senderBytes.length).put(senderBytes);
+        payload.putInt(messageBytes.length).put(messageBytes);
+
+        crc.reset();
+        crc.update(payload.array(), 0, payloadLength);
+
+        int position = segment.writePosition;
+        segment.buffer.put(position + RECORD_HEADER, payload.array(), 0, payloadLength);
+        segment.buffer.putInt(position + 4, (int) crc.getValue());
+        segment.buffer.putInt(position, payloadLength);
+        segment.writePosition = position + RECORD_HEADER + payloadLength;
+
+        index(key, id, segments.size() - 1, position);
+        nextId = id + 1;
+        return id;
+    }
+
+    private synchronized List<StoredMessage> read(String key, long afterId, int limit) {
+        List<StoredMessage> messages = new ArrayList<>();
+        KeyIndex keyIndex = keyIndexes.get(key);
+        if (keyIndex == null || keyIndex.lastId <= afterId || limit <= 0) {
+            return messages;
+        }
+
+        long[] start = floorEntry(keyIndex.entries, afterId);
+        int segmentNumber = (int) start[1];
+        int position = (int) start[2];
+        while (segmentNumber < segments.size()) {
+            Segment segment = segments.get(segmentNumber);
+            if (position >= segment.writePosition) {
+                segmentNumber++;
+                position = 0;
+                continue;
+            }
+            Entry entry = decode(segment.buffer, position);
+            if (entry.id() > keyIndex.lastId) {
+                break;
+            }
+            if (entry.id() > afterId && entry.key().equals(key)) {
+                messages.add(new StoredMessage(entry.id(), entry.sender(), key.substring(1),
+                        entry.message(), entry.timestampMillis()));
+                if (messages.size() == limit) {
+                    break;
+                }
+            }
+            position = entry.next();
+        }
+        return messages;
+    }
+
+    // Last sparse entry with id <= afterId, or the key's first record.
+    private static long[] floorEntry(List<long[]> entries, long afterId) {
+        int low = 0;
+        int high = entries.size() - 1;
+        int found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (entries.get(mid)[0] <= afterId) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return entries.get(found);
+    }
+
+    private void index(String key, long id, int segmentNumber, int position) {
+        KeyIndex keyIndex = keyIndexes.computeIfAbsent(key, k -> new KeyIndex());
+        if (keyIndex.count % SPARSE_EVERY == 0) {
+            keyIndex.entries.add(new long[] {id, segmentNumber, position});
+        }
+        keyIndex.count++;
+        keyIndex.lastId = id;
+        if (key.startsWith("#")) {
+            lastChannelId = Math.max(lastChannelId, id);
+        } else {
+            lastDirectId = Math.max(lastDirectId, id);
+        }
+    }
+
+    private static Entry decode(ByteBuffer buffer, int position) {
+        int length = buffer.getInt(position);
+        int p = position + RECORD_HEADER;
+        long id = buffer.getLong(p);
+        long timestamp = buffer.getLong(p + 8);
+        byte kind = buffer.get(p + 16);
+        p += 17;
+        String key = readString(buffer, p + 2, buffer.getShort(p));
+        p += 2 + buffer.getShort(p);
+        String sender = readString(buffer, p + 2, buffer.getShort(p));
+        p += 2 + buffer.getShort(p);
+        String message = readString(buffer, p + 4, buffer.getInt(p));
+        return new Entry(id, timestamp, kind, key, sender, message, position + RECORD_HEADER + length);
+    }
+
+    private static String readString(ByteBuffer buffer, int position, int length) {
+        byte[] bytes = new byte[length];
+        buffer.get(position, bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void recover(int segmentNumber, boolean newest) throws IOException {
+        Segment segment = segments.get(segmentNumber);
+        MappedByteBuffer buffer = segment.buffer;
+        int position = 0;
+        while (position + RECORD_HEADER <= buffer.capacity()) {
+            int length = buffer.getInt(position);
+            if (length == 0) {
+                break;
+            }
+            if (length < 0 || position + RECORD_HEADER + length > buffer.capacity() || !crcMatches(buffer, position, length)) {
+                System.err.printf("Message journal: corrupt record in segment %d at byte %d%s%n", segment.baseId,
+                        position, newest ? ", truncating" : ", skipping rest of segment");
+                if (newest) {
+                    for (int p = position; p < buffer.capacity(); p++) {
+                        buffer.put(p, (byte) 0);
+                    }
+                    buffer.force();
+                }
+                break;
+            }
+            Entry entry = decode(buffer, position);
+            index(entry.key(), entry.id(), segmentNumber, position);
+            nextId = Math.max(nextId, entry.id() + 1);
+            position = entry.next();
+        }
+        segment.writePosition = position;
+    }
+
+    private boolean crcMatches(ByteBuffer buffer, int position, int length) {
+        byte[] payload = new byte[length];
+        buffer.get(position + RECORD_HEADER, payload);
+        crc.reset();
+        crc.update(payload);
+        return (int) crc.getValue() == buffer.getInt(position + 4);
+    }
+
+    private void roll() throws IOException {
+        if (!segments.isEmpty()) {
+            segments.get(segments.size() - 1).buffer.force();
+        }
+        Path file = dir.resolve(String.format("%020d%s", nextId, SEGMENT_SUFFIX));
+        segments.add(openSegment(file, nextId));
+    }
+
+    private Segment openSegment(Path file, long baseId) throws IOException {
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = Math.max(channel.size(), segmentBytes);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        return new Segment(baseId, channel, buffer);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            segment.channel.close();
+        }
+    }
+}
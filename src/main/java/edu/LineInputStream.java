@@ -0,0 +1,52 @@
+package edu;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+
+/**
+ * Buffered input that can read both protocol lines and raw bytes.
+ *
+ * A BufferedReader reads ahead and keeps whatever binary data follows a command
+ * line (e.g. the body of a sendFile) in its char buffer, where it is lost to
+ * anyone reading the underlying stream. Reading lines and bytes through this one
+ * buffer keeps them in order.
+ */
+public class LineInputStream extends BufferedInputStream {
+
+    private static final int MAX_LINE_BYTES = 64 * 1024;
+
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream(256);
+
+    public LineInputStream(InputStream in) {
+        super(in, 64 * 1024);
+    }
+
+    /**
+     * Reads up to the next '\n' (a trailing '\r' is dropped) and decodes it as UTF-8.
+     *
+     * @return the line, or null at end of stream
+     */
+    public synchronized String readLine() throws IOException {
+        line.reset();
+        int b;
+        while ((b = read()) != -1) {
+            if (b == '\n') {
+                return decode();
+            }
+            if (line.size() >= MAX_LINE_BYTES) {
+                throw new IOException("Line longer than " + MAX_LINE_BYTES + " bytes");
+            }
+            line.write(b);
+        }
+        return line.size() > 0 ? decode() : null;
+    }
+
+    private String decode() {
+        String s = line.toString(StandardCharsets.UTF_8);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+}
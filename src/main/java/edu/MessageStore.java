@@ -0,0 +1,59 @@
+package edu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.util.List;
+
+
+/**
+ * Storage engine for channel and direct messages.
+ *
+ * Selected at startup with {@code -Dmessage.store=sqlite|journal} (default sqlite).
+ * Ids are increasing per engine; callers may only compare ids from the same engine.
+ */
+public interface MessageStore extends Closeable {
+
+    record StoredMessage(long id, String sender, String target, String message, long timestampMillis) {}
+
+    long appendChannelMessage(String sender, String channel, String message) throws IOException;
+
+    long appendDirectMessage(String sender, String receiver, String message) throws IOException;
+
+    /** Up to {@code limit} messages of a channel with an id greater than {@code afterId}, oldest first. */
+    List<StoredMessage> readChannel(String channel, long afterId, int limit) throws IOException;
+
+    /** Up to {@code limit} messages of any channel with an id greater than {@code afterId}, oldest first. */
+    List<StoredMessage> readAllChannels(long afterId, int limit) throws IOException;
+
+    /** Up to {@code limit} messages sent to {@code receiver} with an id greater than {@code afterId}, oldest first. */
+    List<StoredMessage> readDirect(String receiver, long afterId, int limit) throws IOException;
+
+    /** The id of the newest channel message, or 0 if there is none. */
+    long lastChannelMessageId() throws IOException;
+
+    /** The id of the newest direct message, or 0 if there is none. */
+    long lastDirectMessageId() throws IOException;
+
+    static MessageStore fromSystemProperties(Connection conn) throws IOException {
+        String engine = System.getProperty("message.store", "sqlite");
+        return switch (engine) {
+            case "sqlite" -> new SqliteMessageStore(conn);
+            case "journal" -> new JournalMessageStore(
+                    Paths.get(System.getProperty("message.journal.dir", "journal")),
+                    journalSegmentBytes(Long.getLong("message.journal.segment.mb", 64)));
+            default -> throw new IllegalArgumentException("Unknown message.store '" + engine + "', expected sqlite or journal");
+        };
+    }
+
+    /** Segments are mapped whole, and FileChannel.map takes at most Integer.MAX_VALUE bytes. */
+    private static int journalSegmentBytes(long megabytes) {
+        long maxMegabytes = Integer.MAX_VALUE / (1024 * 1024);
+        if (megabytes < 1 || megabytes > maxMegabytes) {
+            throw new IllegalArgumentException("message.journal.segment.mb is " + megabytes
+                    + ", expected 1 to " + maxMegabytes);
+        }
+        return (int) (megabytes * 1024 * 1024);
+    }
+}
@@ -0,0 +1,81 @@
+package edu;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+
+/**
+ * Compares the two MessageStore engines on the server's write pattern: single
+ * message appends spread over a few channels and inboxes, then history reads.
+ *
+ * Usage: mvn exec:java -Dexec.mainClass=edu.MessageStoreBenchmark -Dexec.args="[messages] [channels]"
+ *
+ * Both engines run in a scratch directory; the SQLite run uses the same pragmas and
+ * auto-commit inserts as the live server.
+ */
+public class MessageStoreBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int messages = args.length > 0 ? Integer.parseInt(args[0]) : 50_000;
+        int channels = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+        Path scratch = Files.createTempDirectory("message-store-bench");
+        try {
+            try (Connection conn = DriverManager.getConnection("jdbc:sqlite:" + scratch.resolve("bench.db"))) {
+                SchemaMigrations.applyPragmas(conn);
+                SchemaMigrations.migrate(conn);
+                run("sqlite", new SqliteMessageStore(conn), messages, channels);
+            }
+            try (MessageStore journal = new JournalMessageStore(scratch.resolve("journal"), 64 * 1024 * 1024)) {
+                run("journal", journal, messages, channels);
+            }
+        } finally {
+            try (Stream<Path> files = Files.walk(scratch)) {
+                for (Path file : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private static void run(String name, MessageStore store, int messages, int channels) throws IOException {
+        String payload = "benchmark message with a typical chat length, around eighty characters long....";
+
+        // warm up the JIT and the page cache before measuring
+        for (int i = 0; i < Math.min(2_000, messages); i++) {
+            store.appendChannelMessage("warmup", "warmup", payload);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            if (i % 4 == 0) {
+                store.appendDirectMessage("user" + (i % 50), "user" + ((i + 1) % 50), payload);
+            } else {
+                store.appendChannelMessage("user" + (i % 50), "channel" + (i % channels), payload);
+            }
+        }
+        long appendNanos = System.nanoTime() - start;
+
+        int reads = 1_000;
+        int returned = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            List<MessageStore.StoredMessage> page = store.readChannel("channel" + (i % channels), (long) i * 10, 100);
+            returned += page.size();
+        }
+        long readNanos = System.nanoTime() - start;
+
+        System.out.printf("%-8s appends: %,10.0f msg/s (%.1f us each)   reads: %.1f us per 100-message page (%d rows)%n",
+                name,
+                messages / (appendNanos / 1e9),
+                appendNanos / 1e3 / messages,
+                readNanos / 1e3 / reads,
+                returned);
+    }
+}
@@ -0,0 +1,202 @@
+package edu;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Authoritative, in-memory presence for logged in users.
+ *
+ * Logins, logouts and activity only touch memory. The users.loggedin column is a
+ * derived copy that a background flush brings up to date every
+ * {@code presence.flush.ms} milliseconds: transitions for the same user inside one
+ * window collapse to their final value, users whose final value matches what was
+ * last written are skipped, and the rest go out as one batched transaction. A
+ * login/logout storm therefore costs at most one row write per user per window.
+ *
+ * Channel membership is implicit in this server, so for {@code who #channel} a user
+ * counts as present in a channel once they have sent to it during their session.
+ */
+public class PresenceService {
+
+    enum State { ONLINE, IDLE, OFFLINE }
+
+    static final class Presence {
+        final String username;
+        int sessions;
+        volatile long lastSeen;
+        final Set<String> channels = ConcurrentHashMap.newKeySet();
+
+        Presence(String username) {
+            this.username = username;
+        }
+    }
+
+    private static final String USERS_DB_URL = "jdbc:sqlite:users.db";
+
+    private final Map<String, Presence> presences = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> pending = new HashMap<>();   // username -> loggedin value to write
+    private final Map<String, Boolean> persisted = new HashMap<>(); // last value written per username, start() zeroes all
+    private final long idleAfterMs;
+    private final long flushIntervalMs;
+    private final ScheduledExecutorService flusher;
+
+    public PresenceService(long idleAfterMs, long flushIntervalMs) {
+        this.idleAfterMs = idleAfterMs;
+        this.flushIntervalMs = flushIntervalMs;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "presence-flush");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static PresenceService fromSystemProperties() {
+        return new PresenceService(
+                Long.getLong("presence.idle.ms", TimeUnit.MINUTES.toMillis(5)),
+                Long.getLong("presence.flush.ms", 1000));
+    }
+
+    /**
+     * Nobody is connected to a server that is just starting, whatever a previous
+     * run left behind in the loggedin column.
+     */
+    public void start(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.executeUpdate("UPDATE users SET loggedin = 0 WHERE loggedin <> 0");
+        }
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMs, flushIntervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        flusher.shutdownNow();
+        flushQuietly();
+    }
+
+    public void login(String username) {
+        Presence presence = presences.computeIfAbsent(username, Presence::new);
+        synchronized (presence) {
+            presence.sessions++;
+            presence.lastSeen = System.currentTimeMillis();
+            if (presence.sessions == 1) {
+                markPending(username, true);
+            }
+        }
+    }
+
+    public void logout(String username) {
+        Presence presence = presences.get(username);
+        if (presence == null) {
+            return;
+        }
+        synchronized (presence) {
+            if (presence.sessions == 0) {
+                return;
+            }
+            presence.sessions--;
+            presence.lastSeen = System.currentTimeMillis();
+            if (presence.sessions == 0) {
+                presence.channels.clear();
+                markPending(username, false);
+            }
+        }
+    }
+
+    public void touch(String username) {
+        Presence presence = presences.get(username);
+        if (presence != null) {
+            presence.lastSeen = System.currentTimeMillis();
+        }
+    }
+
+    public void joinedChannel(String username, String channel) {
+        Presence presence = presences.get(username);
+        if (presence != null) {
+            presence.channels.add(channel);
+        }
+    }
+
+    public State state(String username) {
+        Presence presence = presences.get(username);
+        return presence == null ? State.OFFLINE : stateOf(presence, System.currentTimeMillis());
+    }
+
+    private State stateOf(Presence presence, long now) {
+        if (presence.sessions == 0) {
+            return State.OFFLINE;
+        }
+        return now - presence.lastSeen > idleAfterMs ? State.IDLE : State.ONLINE;
+    }
+
+    /**
+     * One line per online or idle user, optionally restricted to a channel, sorted
+     * by username.
+     */
+    public List<String> who(String channel) {
+        long now = System.currentTimeMillis();
+        List<String> lines = new ArrayList<>();
+        for (Presence presence : new TreeMap<>(presences).values()) {
+            State state = stateOf(presence, now);
+            if (state == State.OFFLINE) continue;
+            if (channel != null && !presence.channels.contains(channel)) continue;
+            lines.add(String.format("%s %s (last seen %ds ago)", presence.username,
+                    state.name().toLowerCase(), (now - presence.lastSeen) / 1000));
+        }
+        return lines;
+    }
+
+    private void markPending(String username, boolean loggedIn) {
+        synchronized (pending) {
+            pending.put(username, loggedIn);
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    synchronized void flush() throws SQLException {
+        Map<String, Boolean> batch;
+        synchronized (pending) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = new HashMap<>(pending);
+            pending.clear();
+        }
+        batch.entrySet().removeIf(e -> e.getValue().equals(persisted.getOrDefault(e.getKey(), false)));
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        try (Connection conn = DriverManager.getConnection(USERS_DB_URL)) {
+            SchemaMigrations.applyPragmas(conn);
+            conn.setAutoCommit(false);
+            try (PreparedStatement pstmt = conn.prepareStatement("UPDATE users SET loggedin = ? WHERE username = ?")) {
+                for (Map.Entry<String, Boolean> entry : batch.entrySet()) {
+                    pstmt.setInt(1, entry.getValue() ? 1 : 0);
+                    pstmt.setString(2, entry.getKey());
+                    pstmt.addBatch();
+                }
+                pstmt.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                // put the values back unless a newer transition already replaced them
+                synchronized (pending) {
+                    batch.forEach(pending::putIfAbsent);
+                }
+                throw e;
+            }
+        }
+        persisted.putAll(batch);
+    }
+}
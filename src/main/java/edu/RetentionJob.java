@@ -0,0 +1,363 @@
+package edu;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+
+/**
+ * Background retention for the append-heavy tables in users.db.
+ *
+ * Rows older than a table's policy are first appended to a gzip archive under
+ * {@code <archiveDir>/<table>/<yyyy-MM-dd>.jsonl.gz} (partitioned by the row's own
+ * timestamp), then deleted in small batches, each in its own short transaction,
+ * followed by a bounded {@code PRAGMA incremental_vacuum}. Keeping every write
+ * transaction small means the handlers never wait long on the SQLite write lock.
+ *
+ * Archives are written and synced before the matching delete commits, so a crash
+ * can at worst archive a batch twice, never lose it. Rows that point at an uploaded
+ * file on disk (files.storage_path) have that file moved next to their archive, into
+ * {@code <archiveDir>/<table>/<yyyy-MM-dd>/}, but only once their delete has
+ * committed, so a live row never points at a moved file. The planned moves are
+ * written to {@code <archiveDir>/<table>/pending-moves} first; a crash between the
+ * commit and the moves leaves that list behind, and the next run finishes it.
+ *
+ * Policies are read from system properties, e.g.
+ * {@code -Dretention.channel_messages.days=90 -Dretention.files.days=30}.
+ * A table without a positive value is kept forever.
+ */
+public class RetentionJob implements Runnable {
+
+    record RetentionPolicy(String table, String timestampColumn, int maxAgeDays, int batchSize) {}
+
+    private static final String USERS_DB_URL = "jdbc:sqlite:users.db";
+    private static final int VACUUM_PAGES_PER_BATCH = 256;
+    private static final long PAUSE_BETWEEN_BATCHES_MS = 50;
+
+    private final List<RetentionPolicy> policies;
+    private final Path archiveDir;
+    private final ScheduledExecutorService scheduler;
+
+    public RetentionJob(List<RetentionPolicy> policies, Path archiveDir) {
+        this.policies = policies;
+        this.archiveDir = archiveDir;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "retention-job");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static RetentionJob fromSystemProperties() {
+        List<RetentionPolicy> policies = new ArrayList<>();
+        addPolicy(policies, "channel_messages", "timestamp", 500);
+        addPolicy(policies, "direct_messages", "timestamp", 500);
+        // file rows carry their BLOB, keep those batches small
+        addPolicy(policies, "files", "uploaded_at", 20);
+        return new RetentionJob(policies, Paths.get(System.getProperty("retention.archive.dir", "archive")));
+    }
+
+    private static void addPolicy(List<RetentionPolicy> policies, String table, String timestampColumn, int defaultBatch) {
+        int days = Integer.getInteger("retention." + table + ".days", 0);
+        if (days <= 0) {
+            return;
+        }
+        int batch = Integer.getInteger("retention." + table + ".batch", defaultBatch);
+        policies.add(new RetentionPolicy(table, timestampColumn, days, Math.max(1, batch)));
+    }
+
+    public void start() {
+        if (policies.isEmpty()) {
+            System.out.println("Retention: no policies configured, keeping all rows");
+            return;
+        }
+        long intervalMinutes = Long.getLong("retention.interval.minutes", 60);
+        for (RetentionPolicy policy : policies) {
+            System.out.printf("Retention: %s older than %d day(s), batches of %d%n",
+                    policy.table(), policy.maxAgeDays(), policy.batchSize());
+        }
+        scheduler.scheduleWithFixedDelay(this, 1, intervalMinutes, TimeUnit.MINUTES);
+    }
+
+    public void stop() {
+        scheduler.shutdownNow();
+    }
+
+    @Override
+    public void run() {
+        try (Connection conn = DriverManager.getConnection(USERS_DB_URL)) {
+            SchemaMigrations.applyPragmas(conn);
+            for (RetentionPolicy policy : policies) {
+                long start = System.nanoTime();
+                int removed = enforce(conn, policy);
+                if (removed > 0) {
+                    System.out.printf("Retention: archived and removed %d row(s) from %s in %d ms%n",
+                            removed, policy.table(), (System.nanoTime() - start) / 1_000_000);
+                }
+            }
+        } catch (Exception e) {
+            // never let an exception cancel the scheduled task
+            e.printStackTrace();
+        }
+    }
+
+    int enforce(Connection conn, RetentionPolicy policy) throws SQLException, IOException, InterruptedException {
+        String selectSql = "SELECT * FROM " + policy.table()
+                + " WHERE " + policy.timestampColumn() + " < datetime('now', ?)"
+                + " ORDER BY id LIMIT ?";
+        String deleteSql = "DELETE FROM " + policy.table() + " WHERE id = ?";
+        String ageModifier = "-" + policy.maxAgeDays() + " days";
+
+        finishPendingMoves(conn, policy.table());
+
+        int total = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            Map<String, List<String>> linesByDay = new TreeMap<>();
+            Map<String, List<Path>> storedByDay = new TreeMap<>();
+            List<Long> ids = new ArrayList<>();
+
+            try (PreparedStatement select = conn.prepareStatement(selectSql)) {
+                select.setString(1, ageModifier);
+                select.setInt(2, policy.batchSize());
+                try (ResultSet rs = select.executeQuery()) {
+                    ResultSetMetaData meta = rs.getMetaData();
+                    boolean diskBacked = hasColumn(meta, "storage_path");
+                    while (rs.next()) {
+                        ids.add(rs.getLong("id"));
+                        String timestamp = rs.getString(policy.timestampColumn());
+                        String day = timestamp != null && timestamp.length() >= 10
+                                ? timestamp.substring(0, 10) : "undated";
+                        linesByDay.computeIfAbsent(day, d -> new ArrayList<>()).add(toJsonLine(rs, meta));
+                        String storagePath = diskBacked ? rs.getString("storage_path") : null;
+                        if (storagePath != null) {
+                            storedByDay.computeIfAbsent(day, d -> new ArrayList<>()).add(Paths.get(storagePath));
+                        }
+                    }
+                }
+            }
+            if (ids.isEmpty()) {
+                break;
+            }
+
+            for (Map.Entry<String, List<String>> entry : linesByDay.entrySet()) {
+                appendArchive(policy.table(), entry.getKey(), entry.getValue());
+            }
+            if (!storedByDay.isEmpty()) {
+                writePendingMoves(policy.table(), storedByDay);
+            }
+
+            boolean autoCommit = conn.getAutoCommit();
+            conn.setAutoCommit(false);
+            try (PreparedStatement delete = conn.prepareStatement(deleteSql)) {
+                for (long id : ids) {
+                    delete.setLong(1, id);
+                    delete.addBatch();
+                }
+                delete.executeBatch();
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                Files.deleteIfExists(pendingMovesPath(policy.table()));
+                throw e;
+            } finally {
+                conn.setAutoCommit(autoCommit);
+            }
+
+            if (!storedByDay.isEmpty()) {
+                for (Map.Entry<String, List<Path>> entry : storedByDay.entrySet()) {
+                    archiveStoredFiles(policy.table(), entry.getKey(), entry.getValue());
+                }
+                Files.deleteIfExists(pendingMovesPath(policy.table()));
+            }
+
+            incrementalVacuum(conn, VACUUM_PAGES_PER_BATCH);
+
+            total += ids.size();
+            if (ids.size() < policy.batchSize()) {
+                break;
+            }
+            Thread.sleep(PAUSE_BETWEEN_BATCHES_MS);
+        }
+        return total;
+    }
+
+    /**
+     * Frees up to {@code pages} pages from the freelist. {@code incremental_vacuum(N)}
+     * frees one page per step of the statement (each step yields a result row), and
+     * JDBC's execute() steps it only once, so it is run as {@code incremental_vacuum(1)}
+     * per page, in one transaction, until the budget is spent or the freelist is empty.
+     */
+    static int incrementalVacuum(Connection conn, int pages) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try (Statement stmt = conn.createStatement()) {
+            int freed = 0;
+            long free = freelistCount(stmt);
+            while (freed < pages && free > 0) {
+                stmt.execute("PRAGMA incremental_vacuum(1)");
+                long after = freelistCount(stmt);
+                if (after >= free) {
+                    break; // auto_vacuum is not INCREMENTAL, nothing to reclaim this way
+                }
+                freed += (int) (free - after);
+                free = after;
+            }
+            conn.commit();
+            return freed;
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static long freelistCount(Statement stmt) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("PRAGMA freelist_count")) {
+            return rs.next() ? rs.getLong(1) : 0;
+        }
+    }
+
+    /**
+     * Appends one gzip member per batch. Concatenated members are a valid gzip
+     * stream, so {@code zcat} and GZIPInputStream read the whole day back in order.
+     */
+    private void appendArchive(String table, String day, List<String> lines) throws IOException {
+        Path dir = archiveDir.resolve(table);
+        Files.createDirectories(dir);
+        Path file = dir.resolve(day + ".jsonl.gz");
+
+        try (FileOutputStream fileOut = new FileOutputStream(file.toFile(), true)) {
+            GZIPOutputStream gzip = new GZIPOutputStream(new BufferedOutputStream(fileOut), 8192);
+            Writer writer = new OutputStreamWriter(gzip, StandardCharsets.UTF_8);
+            for (String line : lines) {
+                writer.write(line);
+                writer.write('\n');
+            }
+            writer.flush();
+            gzip.finish();
+            gzip.flush();
+            fileOut.getFD().sync();
+        }
+    }
+
+    private Path pendingMovesPath(String table) {
+        return archiveDir.resolve(table).resolve("pending-moves");
+    }
+
+    /** Records "<day>\t<path>" for every file the next delete will orphan, synced before the delete runs. */
+    private void writePendingMoves(String table, Map<String, List<Path>> storedByDay) throws IOException {
+        Path file = pendingMovesPath(table);
+        Files.createDirectories(file.getParent());
+        try (FileOutputStream fileOut = new FileOutputStream(file.toFile())) {
+            Writer writer = new OutputStreamWriter(fileOut, StandardCharsets.UTF_8);
+            for (Map.Entry<String, List<Path>> entry : storedByDay.entrySet()) {
+                for (Path path : entry.getValue()) {
+                    writer.write(entry.getKey() + "\t" + path + "\n");
+                }
+            }
+            writer.flush();
+            fileOut.getFD().sync();
+        }
+    }
+
+    /**
+     * Moves the files a previous run deleted the rows of but did not get to move.
+     * A file that some row still references (the delete never committed) stays.
+     */
+    private void finishPendingMoves(Connection conn, String table) throws IOException, SQLException {
+        Path file = pendingMovesPath(table);
+        if (!Files.exists(file)) {
+            return;
+        }
+        Map<String, List<Path>> orphansByDay = new TreeMap<>();
+        try (PreparedStatement referenced = conn.prepareStatement(
+                "SELECT 1 FROM " + table + " WHERE storage_path = ? LIMIT 1")) {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                int tab = line.indexOf('\t');
+                if (tab < 0) continue;
+                referenced.setString(1, line.substring(tab + 1));
+                try (ResultSet rs = referenced.executeQuery()) {
+                    if (!rs.next()) {
+                        orphansByDay.computeIfAbsent(line.substring(0, tab), d -> new ArrayList<>())
+                                .add(Paths.get(line.substring(tab + 1)));
+                    }
+                }
+            }
+        }
+        for (Map.Entry<String, List<Path>> entry : orphansByDay.entrySet()) {
+            archiveStoredFiles(table, entry.getKey(), entry.getValue());
+        }
+        Files.delete(file);
+        System.out.println("Retention: finished " + orphansByDay.values().stream().mapToInt(List::size).sum()
+                + " interrupted file move(s) for " + table);
+    }
+
+    private void archiveStoredFiles(String table, String day, List<Path> files) throws IOException {
+        Path dir = archiveDir.resolve(table).resolve(day);
+        Files.createDirectories(dir);
+        for (Path file : files) {
+            if (Files.exists(file)) {
+                Files.move(file, dir.resolve(file.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+    }
+
+    private static boolean hasColumn(ResultSetMetaData meta, String column) throws SQLException {
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+            if (column.equalsIgnoreCase(meta.getColumnName(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String toJsonLine(ResultSet rs, ResultSetMetaData meta) throws SQLException {
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+            if (i > 1) sb.append(',');
+            appendJsonString(sb, meta.getColumnName(i));
+            sb.append(':');
+
+            Object value = rs.getObject(i);
+            if (value == null) {
+                sb.append("null");
+            } else if (value instanceof byte[] bytes) {
+                appendJsonString(sb, Base64.getEncoder().encodeToString(bytes));
+            } else if (value instanceof Number) {
+                sb.append(value);
+            } else {
+                appendJsonString(sb, value.toString());
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    private static void appendJsonString(StringBuilder sb, String s) {
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+                case '"' -> sb.append("\\\"");
+                case '\\' -> sb.append("\\\\");
+                case '\n' -> sb.append("\\n");
+                case '\r' -> sb.append("\\r");
+                case '\t' -> sb.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                }
+            }
+        }
+        sb.append('"');
+    }
+}
@@ -0,0 +1,224 @@
+package edu;
+
+import java.sql.*;
+import java.util.List;
+
+
+/**
+ * Versioned schema migrations for users.db.
+ *
+ * The applied schema version is kept in {@code PRAGMA user_version}. Each migration
+ * runs once, inside its own transaction, and bumps user_version in that same
+ * transaction, so a crash mid-upgrade leaves the database at the previous version.
+ * A database that is already current costs one PRAGMA read on startup.
+ *
+ * Steps that SQLite refuses to run inside a transaction (VACUUM) are marked
+ * non-transactional; they must be safe to re-run if the server dies before the
+ * version bump.
+ */
+public class SchemaMigrations {
+
+    @FunctionalInterface
+    interface MigrationStep {
+        void apply(Connection conn) throws SQLException;
+    }
+
+    record Migration(int version, String description, boolean transactional, MigrationStep step) {}
+
+    private static final List<Migration> MIGRATIONS = List.of(
+            new Migration(1, "baseline tables", true, SchemaMigrations::createBaselineTables),
+            new Migration(2, "lookup indexes", true, SchemaMigrations::createIndexes),
+            new Migration(3, "incremental auto_vacuum", false, SchemaMigrations::enableIncrementalVacuum),
+            new Migration(4, "disk-backed file storage", true, SchemaMigrations::addFileStorageColumns)
+    );
+
+    public static int latestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version();
+    }
+
+    /**
+     * Per-connection tuning. journal_mode=WAL is persistent in the file, the rest
+     * has to be set again on every connection that is opened.
+     */
+    public static void applyPragmas(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA journal_mode = WAL");
+            stmt.execute("PRAGMA synchronous = NORMAL");
+            stmt.execute("PRAGMA cache_size = -16000");     // ~16 MB page cache
+            stmt.execute("PRAGMA mmap_size = 268435456");   // 256 MB
+            stmt.execute("PRAGMA busy_timeout = 5000");
+        }
+    }
+
+    /**
+     * Brings the database up to {@link #latestVersion()}.
+     *
+     * @return the number of migrations that were applied
+     */
+    public static int migrate(Connection conn) throws SQLException {
+        int current = readUserVersion(conn);
+        if (current > latestVersion()) {
+            throw new SQLException("users.db is at schema version " + current
+                    + " but this server only knows up to " + latestVersion());
+        }
+
+        int applied = 0;
+        for (Migration migration : MIGRATIONS) {
+            if (migration.version() <= current) {
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                if (migration.transactional()) {
+                    applyInTransaction(conn, migration);
+                } else {
+                    migration.step().apply(conn);
+                    setUserVersion(conn, migration.version());
+                }
+            } catch (SQLException e) {
+                throw new SQLException("Migration " + migration.version() + " ("
+                        + migration.description() + ") failed", e);
+            }
+            applied++;
+            System.out.printf("Applied migration %d (%s) in %d ms%n", migration.version(),
+                    migration.description(), (System.nanoTime() - start) / 1_000_000);
+        }
+        return applied;
+    }
+
+    private static void applyInTransaction(Connection conn, Migration migration) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            migration.step().apply(conn);
+            setUserVersion(conn, migration.version());
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    static int readUserVersion(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA user_version")) {
+            return rs.next() ? rs.getInt(1) : 0;
+        }
+    }
+
+    private static void setUserVersion(Connection conn, int version) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA user_version = " + version);
+        }
+    }
+
+    private static boolean columnExists(Connection conn, String table, String column) throws SQLException {
+        try (Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    // Version 1: the tables the server used to create on every boot. Databases that
+    // predate user_version already have some of them, possibly without the later
+    // loggedin/assignee columns, so those are added only when actually missing.
+    private static void createBaselineTables(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE TABLE IF NOT EXISTS users (" +
+                    "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "username TEXT NOT NULL," +
+                    "password TEXT NOT NULL," +
+                    "ip_address TEXT NOT NULL," +
+                    "hostname TEXT NOT NULL," +
+                    "loggedin INTEGER DEFAULT 0" +
+                    ");");
+
+            stmt.execute("CREATE TABLE IF NOT EXISTS channel_messages (" +
+                    "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "sender TEXT NOT NULL," +
+                    "channel TEXT NOT NULL," +
+                    "message TEXT NOT NULL," +
+                    "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP" +
+                    ");");
+
+            stmt.execute("CREATE TABLE IF NOT EXISTS direct_messages (" +
+                    "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "sender TEXT NOT NULL," +
+                    "receiver TEXT NOT NULL," +
+                    "message TEXT NOT NULL," +
+                    "timestamp DATETIME DEFAULT CURRENT_TIMESTAMP" +
+                    ");");
+
+            stmt.execute("CREATE TABLE IF NOT EXISTS tasks (" +
+                    "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "creator TEXT NOT NULL," +
+                    "assignee TEXT," +
+                    "description TEXT NOT NULL" +
+                    ");");
+
+            stmt.execute("CREATE TABLE IF NOT EXISTS files (" +
+                    "id INTEGER PRIMARY KEY AUTOINCREMENT," +
+                    "sender TEXT NOT NULL," +
+                    "destination_type TEXT NOT NULL CHECK(destination_type IN ('CHANNEL', 'USER'))," +
+                    "destination_name TEXT NOT NULL," +
+                    "filename TEXT NOT NULL," +
+                    "file_data BLOB NOT NULL," +
+                    "uploaded_at DATETIME DEFAULT CURRENT_TIMESTAMP" +
+                    ");");
+
+            if (!columnExists(conn, "users", "loggedin")) {
+                stmt.execute("ALTER TABLE users ADD COLUMN loggedin INTEGER DEFAULT 0");
+            }
+            if (!columnExists(conn, "tasks", "assignee")) {
+                stmt.execute("ALTER TABLE tasks ADD COLUMN assignee TEXT");
+            }
+        }
+    }
+
+    // Version 2: indexes for the lookups the handlers actually run (login, assignee
+    // checks, per-channel/per-inbox history and file lookups by destination).
+    private static void createIndexes(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_users_username ON users(username)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_channel_messages_channel ON channel_messages(channel, id)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_channel_messages_timestamp ON channel_messages(timestamp)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_direct_messages_receiver ON direct_messages(receiver, id)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_direct_messages_timestamp ON direct_messages(timestamp)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_tasks_assignee ON tasks(assignee)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_files_destination ON files(destination_type, destination_name)");
+            stmt.execute("CREATE INDEX IF NOT EXISTS idx_files_uploaded_at ON files(uploaded_at)");
+            stmt.execute("ANALYZE");
+        }
+    }
+
+    // Version 3: lets RetentionJob hand freed pages back to the OS a few at a time
+    // with PRAGMA incremental_vacuum. Switching an existing file out of auto_vacuum=NONE
+    // needs one full VACUUM, so large databases pay for this once, on this upgrade.
+    private static void enableIncrementalVacuum(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            stmt.execute("PRAGMA auto_vacuum = INCREMENTAL");
+            stmt.execute("VACUUM");
+        }
+    }
+
+    // Version 4: uploads are kept on disk by FileTransferStore so they can be resumed
+    // and served in ranges. Those rows carry an empty file_data and point at the file;
+    // rows written before this version keep their BLOB and a NULL storage_path.
+    private static void addFileStorageColumns(Connection conn) throws SQLException {
+        try (Statement stmt = conn.createStatement()) {
+            if (!columnExists(conn, "files", "storage_path")) {
+                stmt.execute("ALTER TABLE files ADD COLUMN storage_path TEXT");
+            }
+            if (!columnExists(conn, "files", "file_size")) {
+                stmt.execute("ALTER TABLE files ADD COLUMN file_size INTEGER");
+            }
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package edu;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+
+/**
+ * Resume tokens, so a client that lost its connection can pick up its session with
+ * {@code resume <token>} instead of a full login.
+ *
+ * A token is {@code base64(username, session id, client ip, issued at)} plus an
+ * HMAC-SHA256 of it, signed with a key kept in {@code resume.key.file} (default
+ * resume.key) so tokens outlive a restart. Checking one needs no database access.
+ *
+ * When a session ends its channels, watchTasks flag and delivery position (the last
+ * channel and direct message id written to its socket) are kept for
+ * {@code resume.window.seconds} (default 120). A resume inside that window restores
+ * them. For the same window after a restart, when nothing is kept, a token still
+ * signs the user in if it was issued no more than one window before the restart;
+ * older ones could belong to sessions that ended long ago. Connected clients get a
+ * fresh token with their reconnect hint on shutdown, so they pass that check. Tokens
+ * older than {@code resume.token.max.hours} (default 12) are refused outright.
+ *
+ * Full logins are admitted {@code login.max.concurrent} (default 16) at a time; the
+ * rest are told to come back after a jittered {@link #retryHintMs()}, and on shutdown
+ * every client gets a jittered {@link #reconnectHintMs()} so they do not all return
+ * in the same instant.
+ */
+public class SessionResumeService {
+
+    enum Status { OK, EXPIRED, INVALID }
+
+    static final class Session {
+        final String username;
+        final String id;
+        final String ip;
+        final Set<String> channels = ConcurrentHashMap.newKeySet();
+        volatile boolean watchTasks;
+        Object owner;                 // the handler currently serving it, null while detached
+        long detachedAt;
+        boolean positionKnown;        // false until the session detaches; nothing is replayed without it
+        long channelPosition;
+        long directPosition;
+
+        Session(String username, String id, String ip) {
+            this.username = username;
+            this.id = id;
+            this.ip = ip;
+        }
+    }
+
+    /** Outcome of a resume; {@code session} is set for OK. */
+    record Resumed(Status status, Session session, String token) {}
+
+    private static final String HMAC = "HmacSHA256";
+    private static final int KEY_BYTES = 32;
+
+    private final byte[] key;
+    private final long windowMs;
+    private final long maxTokenAgeMs;
+    private final long retryBaseMs;
+    private final long reconnectSpreadMs;
+    private final Semaphore loginPermits;
+    private final long startedAt = System.currentTimeMillis();
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private volatile long lastPurge = startedAt;
+
+    public SessionResumeService(byte[] key, long windowMs, long maxTokenAgeMs, int maxConcurrentLogins,
+                                long retryBaseMs, long reconnectSpreadMs) {
+        this.key = key.clone();
+        this.windowMs = windowMs;
+        this.maxTokenAgeMs = maxTokenAgeMs;
+        this.loginPermits = new Semaphore(maxConcurrentLogins);
+        this.retryBaseMs = retryBaseMs;
+        this.reconnectSpreadMs = reconnectSpreadMs;
+    }
+
+    public static SessionResumeService fromSystemProperties() throws IOException {
+        return new SessionResumeService(
+                loadOrCreateKey(Paths.get(System.getProperty("resume.key.file", "resume.key"))),
+                TimeUnit.SECONDS.toMillis(Long.getLong("resume.window.seconds", 120)),
+                TimeUnit.HOURS.toMillis(Long.getLong("resume.token.max.hours", 12)),
+                Integer.getInteger("login.max.concurrent", 16),
+                Long.getLong("login.retry.ms", 500),
+                Long.getLong("resume.reconnect.spread.ms", 5000));
+    }
+
+    static byte[] loadOrCreateKey(Path file) throws IOException {
+        if (Files.exists(file)) {
+            byte[] key = Files.readAllBytes(file);
+            if (key.length < KEY_BYTES) {
+                throw new IOException(file + " holds " + key.length + " bytes, expected " + KEY_BYTES);
+            }
+            return key;
+        }
+        byte[] key = new byte[KEY_BYTES];
+        new SecureRandom().nextBytes(key);
+        Files.write(file, key, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            Files.setPosixFilePermissions(file, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException ignored) {
+            // not a POSIX file system
+        }
+        System.out.println("Created resume token key " + file);
+        return key;
+    }
+
+    /** Starts a session for a user who just logged in with a password. */
+    public Session open(String username, String ip, Object owner) {
+        purgeExpired();
+        byte[] idBytes = new byte[8];
+        random.nextBytes(idBytes);
+        Session session = new Session(username, Base64.getUrlEncoder().withoutPadding().encodeToString(idBytes), ip);
+        session.owner = owner;
+        sessions.put(session.id, session);
+        return session;
+    }
+
+    public String issue(Session session) {
+        String payload = String.join("\n", session.username, session.id, session.ip,
+                Long.toString(System.currentTimeMillis()));
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        return encoder.encodeToString(payloadBytes) + "." + encoder.encodeToString(sign(payloadBytes));
+    }
+
+    /**
+     * Validates {@code token} for a client connecting from {@code ip} and hands its
+     * session to {@code owner}. A session that is still attached (the old socket has
+     * not noticed the drop yet) is taken over, without a delivery position.
+     */
+    public Resumed resume(String token, String ip, Object owner) {
+        String[] fields = verify(token);
+        if (fields == null || !fields[2].equals(ip)) {
+            return new Resumed(Status.INVALID, null, null);
+        }
+        long now = System.currentTimeMillis();
+        long issuedAt = Long.parseLong(fields[3]);
+        if (now - issuedAt > maxTokenAgeMs) {
+            return new Resumed(Status.EXPIRED, null, null);
+        }
+
+        Session session = sessions.get(fields[1]);
+        if (session != null) {
+            synchronized (session) {
+                if (session.owner == null && now - session.detachedAt > windowMs) {
+                    sessions.remove(session.id);
+                    return new Resumed(Status.EXPIRED, null, null);
+                }
+                if (session.owner != null) {
+                    session.positionKnown = false;
+                }
+                session.owner = owner;
+            }
+        } else if (now - startedAt <= windowMs && issuedAt < startedAt && issuedAt >= startedAt - windowMs) {
+            // issued just before a restart: nothing was kept, but the user is who they say
+            session = new Session(fields[0], fields[1], ip);
+            session.owner = owner;
+            sessions.put(session.id, session);
+        } else {
+            return new Resumed(Status.EXPIRED, null, null);
+        }
+        return new Resumed(Status.OK, session, issue(session));
+    }
+
+    /** Keeps a session's state for the resume window after its connection ends. */
+    public void detach(Session session, Object owner, long channelPosition, long directPosition) {
+        synchronized (session) {
+            if (session.owner != owner) {
+                return; // already taken over by a resume on another connection
+            }
+            session.owner = null;
+            session.detachedAt = System.currentTimeMillis();
+            session.positionKnown = true;
+            session.channelPosition = channelPosition;
+            session.directPosition = directPosition;
+        }
+    }
+
+    /** Drops a session for good, e.g. when its connection logs in as someone else. */
+    public void discard(Session session) {
+        sessions.remove(session.id);
+    }
+
+    public boolean tryAdmitLogin() {
+        return loginPermits.tryAcquire();
+    }
+
+    public void releaseLogin() {
+        loginPermits.release();
+    }
+
+    /** How long a refused login should wait: the base delay plus up to as much again. */
+    public long retryHintMs() {
+        return retryBaseMs + ThreadLocalRandom.current().nextLong(retryBaseMs + 1);
+    }
+
+    /** When a client should come back after a shutdown, spread over the configured window. */
+    public long reconnectHintMs() {
+        return ThreadLocalRandom.current().nextLong(reconnectSpreadMs + 1);
+    }
+
+    private String[] verify(String token) {
+        int dot = token.indexOf('.');
+        if (dot < 0) {
+            return null;
+        }
+        byte[] payload;
+        byte[] signature;
+        try {
+            payload = Base64.getUrlDecoder().decode(token.substring(0, dot));
+            signature = Base64.getUrlDecoder().decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(sign(payload), signature)) {
+            return null;
+        }
+        String[] fields = new String(payload, StandardCharsets.UTF_8).split("\n", -1);
+        return fields.length == 4 ? fields : null;
+    }
+
+    private byte[] sign(byte[] payload) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(key, HMAC));
+            return mac.doFinal(payload);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(HMAC + " is not available", e);
+        }
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        if (now - lastPurge < windowMs) {
+            return;
+        }
+        lastPurge = now;
+        sessions.values().removeIf(session -> {
+            synchronized (session) {
+                return session.owner == null && now - session.detachedAt > windowMs;
+            }
+        });
+    }
+}
@@ -0,0 +1,111 @@
+package edu;
+
+import java.io.IOException;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The original engine: one auto-commit INSERT per message into channel_messages or
+ * direct_messages on the server's shared connection.
+ */
+public class SqliteMessageStore implements MessageStore {
+
+    private final Connection conn;
+
+    public SqliteMessageStore(Connection conn) {
+        this.conn = conn;
+    }
+
+    @Override
+    public long appendChannelMessage(String sender, String channel, String message) throws IOException {
+        return insert("INSERT INTO channel_messages (sender, channel, message) VALUES (?, ?, ?)", sender, channel, message);
+    }
+
+    @Override
+    public long appendDirectMessage(String sender, String receiver, String message) throws IOException {
+        return insert("INSERT INTO direct_messages (sender, receiver, message) VALUES (?, ?, ?)", sender, receiver, message);
+    }
+
+    @Override
+    public List<StoredMessage> readChannel(String channel, long afterId, int limit) throws IOException {
+        return read("SELECT id, sender, channel AS target, message, strftime('%s', timestamp) AS ts FROM channel_messages"
+                + " WHERE channel = ? AND id > ? ORDER BY id LIMIT ?", channel, afterId, limit);
+    }
+
+    @Override
+    public List<StoredMessage> readAllChannels(long afterId, int limit) throws IOException {
+        return read("SELECT id, sender, channel AS target, message, strftime('%s', timestamp) AS ts FROM channel_messages"
+                + " WHERE id > ? ORDER BY id LIMIT ?", afterId, limit);
+    }
+
+    @Override
+    public List<StoredMessage> readDirect(String receiver, long afterId, int limit) throws IOException {
+        return read("SELECT id, sender, receiver AS target, message, strftime('%s', timestamp) AS ts FROM direct_messages"
+                + " WHERE receiver = ? AND id > ? ORDER BY id LIMIT ?", receiver, afterId, limit);
+    }
+
+    @Override
+    public long lastChannelMessageId() throws IOException {
+        return maxId("SELECT COALESCE(MAX(id), 0) FROM channel_messages");
+    }
+
+    @Override
+    public long lastDirectMessageId() throws IOException {
+        return maxId("SELECT COALESCE(MAX(id), 0) FROM direct_messages");
+    }
+
+    private long maxId(String sql) throws IOException {
+        try (Statement stmt = conn.createStatement(); ResultSet rs = stmt.executeQuery(sql)) {
+            return rs.next() ? rs.getLong(1) : 0;
+        } catch (SQLException e) {
+            throw new IOException("Failed to read the newest message id", e);
+        }
+    }
+
+    private long insert(String sql, String sender, String target, String message) throws IOException {
+        try (PreparedStatement pstmt = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+            pstmt.setString(1, sender);
+            pstmt.setString(2, target);
+            pstmt.setString(3, message);
+            pstmt.executeUpdate();
+            try (ResultSet keys = pstmt.getGeneratedKeys()) {
+                return keys.next() ? keys.getLong(1) : 0;
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to store message", e);
+        }
+    }
+
+    private List<StoredMessage> read(String sql, String target, long afterId, int limit) throws IOException {
+        return read(sql, new Object[] {target, afterId, limit});
+    }
+
+    private List<StoredMessage> read(String sql, long afterId, int limit) throws IOException {
+        return read(sql, new Object[] {afterId, limit});
+    }
+
+    private List<StoredMessage> read(String sql, Object[] params) throws IOException {
+        List<StoredMessage> messages = new ArrayList<>();
+        try (PreparedStatement pstmt = conn.prepareStatement(sql)) {
+            for (int i = 0; i < params.length; i++) {
+                pstmt.setObject(i + 1, params[i]);
+            }
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    messages.add(new StoredMessage(rs.getLong("id"), rs.getString("sender"), rs.getString("target"),
+                            rs.getString("message"), rs.getLong("ts") * 1000));
+                }
+            }
+        } catch (SQLException e) {
+            throw new IOException("Failed to read messages", e);
+        }
+        return messages;
+    }
+
+    @Override
+    public void close() {
+        // the connection belongs to ServerMaven
+    }
+}
@@ -0,0 +1,215 @@
+package edu;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ * Per-connection stream compression, negotiated with {@code compress <mode>} as the
+ * first command on a connection.
+ *
+ * Both directions are one continuous deflate stream, so the dictionary carries over
+ * from line to line. Every flush of the output ends with a SYNC_FLUSH, so each
+ * protocol line (or file body) reaches the peer as soon as it is written and never
+ * waits for more data to fill a block.
+ *
+ * Modes: {@code deflate} (zlib default level) and {@code fast} (BEST_SPEED, the
+ * cheap-CPU option for busy servers). The JDK ships no LZ4, and a deflate stream
+ * keeps every peer dependency-free.
+ */
+public class StreamCompression implements Closeable {
+
+    public enum Mode {
+        DEFLATE(Deflater.DEFAULT_COMPRESSION),
+        FAST(Deflater.BEST_SPEED);
+
+        final int level;
+
+        Mode(int level) {
+            this.level = level;
+        }
+
+        /** The mode for a {@code compress} argument, or null for none/unknown. */
+        static Mode parse(String name) {
+            return switch (name.toLowerCase(Locale.ROOT)) {
+                case "deflate" -> DEFLATE;
+                case "fast" -> FAST;
+                default -> null;
+            };
+        }
+    }
+
+    // Formats that are compressed already; deflating them again only burns CPU.
+    private static final Set<String> PRECOMPRESSED = Set.of(
+            "zip", "gz", "tgz", "bz2", "xz", "7z", "rar", "zst", "lz4",
+            "jpg", "jpeg", "png", "gif", "webp", "heic",
+            "mp3", "aac", "ogg", "flac", "mp4", "mkv", "mov", "avi", "webm",
+            "docx", "xlsx", "pptx", "jar", "apk", "pdf");
+
+    private static final int BUFFER_BYTES = 16 * 1024;
+
+    private final Mode mode;
+    private final Deflater deflater;
+    private final Inflater inflater = new Inflater();
+
+    private volatile boolean closed;
+    private long outPlain, outWire, outNanos;
+    private long inPlain, inWire, inNanos;
+
+    public StreamCompression(Mode mode) {
+        this.mode = mode;
+        this.deflater = new Deflater(mode.level);
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    public static boolean isPrecompressed(String filename) {
+        int dot = filename.lastIndexOf('.');
+        return dot >= 0 && PRECOMPRESSED.contains(filename.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Switches the output to stored (level 0) blocks and back. Data already written
+     * is flushed at the old level first, so this only affects what follows.
+     */
+    public void storeOnly(boolean store) {
+        deflater.setLevel(store ? Deflater.NO_COMPRESSION : mode.level);
+    }
+
+    public OutputStream wrapOutput(OutputStream wire) {
+        return new OutputStream() {
+            private final byte[] buffer = new byte[BUFFER_BYTES];
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                ensureOpen();
+                if (len == 0) return;
+                long start = System.nanoTime();
+                deflater.setInput(b, off, len);
+                while (!deflater.needsInput()) {
+                    drain(Deflater.NO_FLUSH);
+                }
+                outPlain += len;
+                outNanos += System.nanoTime() - start;
+            }
+
+            @Override
+            public void flush() throws IOException {
+                ensureOpen();
+                long start = System.nanoTime();
+                while (drain(Deflater.SYNC_FLUSH) == buffer.length) {
+                    // a full buffer means there may be more flushed output
+                }
+                outNanos += System.nanoTime() - start;
+                wire.flush();
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+                wire.close();
+            }
+
+            private int drain(int flushMode) throws IOException {
+                int n = deflater.deflate(buffer, 0, buffer.length, flushMode);
+                if (n > 0) {
+                    wire.write(buffer, 0, n);
+                    outWire += n;
+                }
+                return n;
+            }
+        };
+    }
+
+    public InputStream wrapInput(InputStream wire) {
+        return new InputStream() {
+            private final byte[] buffer = new byte[BUFFER_BYTES];
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                ensureOpen();
+                while (true) {
+                    long start = System.nanoTime();
+                    int n;
+                    try {
+                        n = inflater.inflate(b, off, len);
+                    } catch (DataFormatException e) {
+                        throw new IOException("Corrupt compressed stream", e);
+                    }
+                    inNanos += System.nanoTime() - start;
+                    if (n > 0) {
+                        inPlain += n;
+                        return n;
+                    }
+                    if (inflater.finished()) {
+                        return -1;
+                    }
+                    if (inflater.needsInput()) {
+                        int read = wire.read(buffer, 0, buffer.length);
+                        if (read == -1) {
+                            return -1;
+                        }
+                        inWire += read;
+                        inflater.setInput(buffer, 0, read);
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                wire.close();
+            }
+        };
+    }
+
+    /**
+     * Frees the native zlib state (about 256 KB for a default-level deflater) now
+     * instead of whenever the cleaner runs. Callers hold the session's write lock;
+     * writes that come later fail with an IOException instead of touching freed memory.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        deflater.end();
+        inflater.end();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Compressed stream is closed");
+        }
+    }
+
+    /** One-line summary for the compressionStats command and the disconnect log. */
+    public String stats() {
+        return String.format("COMPRESSION %s out: %d -> %d bytes (ratio %.2f, %.1f ms cpu) in: %d -> %d bytes (ratio %.2f, %.1f ms cpu)",
+                mode.name().toLowerCase(Locale.ROOT),
+                outPlain, outWire, ratio(outPlain, outWire), outNanos / 1e6,
+                inWire, inPlain, ratio(inPlain, inWire), inNanos / 1e6);
+    }
+
+    private static double ratio(long plain, long wire) {
+        return wire == 0 ? 1.0 : (double) plain / wire;
+    }
+}
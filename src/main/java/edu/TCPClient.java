@@ -1,95 +1,240 @@
 package edu;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 
+/**
+ * Interactive console client. All networking (reconnects, re-login, resumable
+ * uploads) is done by {@link ChatClient}; this class only reads commands and
+ * prints what comes back.
+ */
 public class TCPClient {
-    private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
-    private boolean running = true;
-
-    public void connect(String serverAddress, int port) throws IOException {
-        this.socket = new Socket(serverAddress, port);
-        this.out = new PrintWriter(this.socket.getOutputStream(), true);
-        this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
-        System.out.println("Connected to server at " + serverAddress + ":" + port);
+    private static final Path DOWNLOADS = Paths.get("downloads");
+    private static final int MAX_BULK_ITEMS = 10000;   // the server's limit
+
+    private final ChatClient client;
+    private volatile boolean running = true;
+
+    public TCPClient(String serverAddress, int port) {
+        this.client = new ChatClient(serverAddress, port);
+        this.client.setListener(new ChatClient.Listener() {
+            @Override
+            public void onConnected() {
+                System.out.println("\nConnected to server at " + serverAddress + ":" + port);
+                prompt();
+            }
+
+            @Override
+            public void onDisconnected(IOException cause) {
+                if (running) {
+                    System.err.println("\n✗ Connection lost (" + cause.getMessage() + "), reconnecting...");
+                }
+            }
+
+            @Override
+            public void onChannelMessage(String channel, String message) {
+                System.out.println("\n[#" + channel + "] " + message);
+                prompt();
+            }
+
+            @Override
+            public void onDirectMessage(String sender, String message) {
+                System.out.println("\n[Message Received] " + sender + ": " + message);
+                prompt();
+            }
+
+            @Override
+            public void onTaskEvent(String event) {
+                System.out.println("\n[Task] " + event);
+                prompt();
+            }
+
+            @Override
+            public WritableByteChannel openIncomingFile(String filename, long fileId, long size) throws IOException {
+                Files.createDirectories(DOWNLOADS);
+                return FileChannel.open(downloadPath(filename), StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            }
+
+            @Override
+            public void onIncomingFile(String filename, long fileId, long size, IOException error) {
+                System.out.println("\n[File Received] " + filename + " (" + size + " bytes, id " + fileId + ") "
+                        + (error == null ? "saved to " + downloadPath(filename) : "could not be saved: " + error.getMessage()));
+                prompt();
+            }
+        });
     }
 
-    public void sendMessage(String message) throws IOException {
-        if (this.out != null) {
-            this.out.println(message);
-        }
+    public void connect() throws IOException {
+        client.connect();
     }
 
-    public void disconnect() throws IOException {
+    public void disconnect() {
         running = false;
-        if (this.in != null) {
-            this.in.close();
+        client.close();
+    }
+
+    private static void prompt() {
+        System.out.print("> ");
+    }
+
+    private static Path downloadPath(String filename) {
+        return DOWNLOADS.resolve(Paths.get(filename).getFileName());
+    }
+
+    private void printResponse(ChatClient.Response response, Throwable error) {
+        if (error != null) {
+            System.err.println("\n✗ " + error.getMessage());
+        } else {
+            for (String line : response.lines()) {
+                System.out.println("\n[Server] " + line);
+            }
         }
+        prompt();
+    }
 
-        if (this.out != null) {
-            this.out.close();
+    private void handleLoginOrRegister(String userInput) {
+        String[] parts = userInput.split("\\s+");
+        if (parts.length < 3) {
+            client.send(userInput).whenComplete(this::printResponse);
+            return;
+        }
+
+        boolean login = parts[0].equals("login");
+        String lastResponse;
+        try {
+            ChatClient.Response response = (login ? client.login(parts[1], parts[2]) : client.register(parts[1], parts[2]))
+                    .get(5, TimeUnit.SECONDS);
+            lastResponse = response.first();
+        } catch (Exception e) {
+            System.err.println("\n✗ No response from server.");
+            prompt();
+            return;
         }
 
-        if (this.socket != null) {
-            this.socket.close();
+        if (lastResponse.startsWith("LOGIN OK") || lastResponse.equals("REGISTER OK")) {
+            System.out.println("\n✓ " + (login ? "Login" : "Registration") + " successful!");
+            System.out.println("Available commands:");
+            System.out.println("  send #<channel> <message>  (e.g., send #general Hello)");
+            System.out.println("  send @<username> <message>  (e.g., send @alice Hello)");
+            System.out.println("  createTask <task_description>");
+            System.out.println("  assignTask <task_id> <username>");
+            System.out.println("  bulkCreateTasks <count> / bulkAssignTasks <count>, then one item per line");
+            System.out.println("  viewTasks");
+            System.out.println("  watchTasks / unwatchTasks");
+            System.out.println("  who [#channel]");
+            System.out.println("  sendFile <channel|user> <destination> <file_path>");
+            System.out.println("  getFile <file_id> [offset]");
+        } else if (lastResponse.startsWith("LOGIN BUSY")) {
+            System.err.println("\n✗ Server is busy, try again in " + lastResponse.substring("LOGIN BUSY ".length()) + " ms.");
+        } else if (lastResponse.equals("LOGIN FAILED")) {
+            System.err.println("\n✗ Login failed. Check username/password or register first.");
+        } else {
+            System.err.println("\n✗ " + lastResponse);
         }
+        prompt();
     }
 
-    // Thread for receiving messages from the server
-    private volatile String lastResponse = null;
-    private volatile boolean responseReceived = false;
-    private Thread receiverThread;
-    
-    private void startMessageReceiver() {
-        receiverThread = new Thread(() -> {
-            try {
-                String line;
-                while (running && (line = in.readLine()) != null) {
-                    if (line.startsWith("receivedMessage ")) {
-                        // Receive Direct Message - format: receivedMessage sender "message"
-                        String[] parts = line.split(" ", 3);
-                        if (parts.length >= 3) {
-                            String sender = parts[1];
-                            String message = parts[2];
-                            // Remove quotes if present
-                            if (message.startsWith("\"") && message.endsWith("\"")) {
-                                message = message.substring(1, message.length() - 1);
-                            }
-                            System.out.println("\n[Message Received] " + sender + ": " + message);
-                        } else {
-                            System.out.println("\n" + line);
-                        }
-                        System.out.print("> ");
-                    } else {
-                        lastResponse = line;
-                        responseReceived = true;
-                        System.out.println("\n[Server] " + line);
-                        if (!line.equals("LOGIN OK") && !line.equals("REGISTER OK") && !line.startsWith("MESSAGE SENT")) {
-                            System.out.print("> ");
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                if (running) {
-                    // Do not print error message if normal shutdown
+    private void handleSendFile(String userInput) {
+        String[] parts = userInput.split("\\s+");
+        if (parts.length != 4) {
+            // already in the raw "sendFile <type> <dest> <name> <size>" form, or malformed
+            System.err.println("\n✗ usage: sendFile <channel|user> <destination> <file_path>");
+            prompt();
+            return;
+        }
+        try {
+            client.uploadFile(parts[1], parts[2], Paths.get(parts[3])).whenComplete(this::printResponse);
+            System.out.println("Uploading " + parts[3] + "...");
+        } catch (IOException e) {
+            System.err.println("\n✗ Cannot read " + parts[3] + ": " + e.getMessage());
+        }
+        prompt();
+    }
+
+    // Downloads go to downloads/file-<id>.part first (a later "getFile <id> <offset>" continues
+    // it in place) and are renamed to their real name once the server's header is known.
+    private void handleGetFile(String userInput) {
+        String[] parts = userInput.split("\\s+");
+        long fileId;
+        long offset;
+        try {
+            fileId = Long.parseLong(parts[1]);
+            offset = parts.length > 2 ? Long.parseLong(parts[2]) : 0;
+            Files.createDirectories(DOWNLOADS);
+        } catch (NumberFormatException e) {
+            System.err.println("\n✗ usage: getFile <file_id> [offset]");
+            prompt();
+            return;
+        } catch (IOException e) {
+            System.err.println("\n✗ Cannot create " + DOWNLOADS + ": " + e.getMessage());
+            prompt();
+            return;
+        }
+
+        Path partial = DOWNLOADS.resolve("file-" + fileId + ".part");
+        client.getFile(fileId, offset, partial).whenComplete((response, error) -> {
+            if (error == null && response.first().startsWith("FILE ")) {
+                // FILE <fileId> <filename> <size> <offset> <length>
+                String[] header = response.first().split(" ");
+                String saved;
+                try {
+                    saved = "saved to " + Files.move(partial, downloadPath(header[2]), StandardCopyOption.REPLACE_EXISTING);
+                } catch (IOException e) {
+                    saved = "left in " + partial + ": " + e.getMessage();
                 }
+                System.out.println("\n[File] " + header[2] + " (" + header[5] + " of " + header[3]
+                        + " bytes from offset " + header[4] + ") " + saved);
+                prompt();
+            } else {
+                printResponse(response, error);
             }
         });
-        receiverThread.setDaemon(true);
-        receiverThread.start();
+    }
+
+    // The item lines belong to the bulk command: they are collected here and sent as one
+    // request, or every later reply would be matched to the wrong command.
+    private void handleBulk(String userInput, Scanner scanner) {
+        String[] parts = userInput.split("\\s+");
+        int count;
+        try {
+            count = parts.length == 2 ? Integer.parseInt(parts[1]) : -1;
+        } catch (NumberFormatException e) {
+            count = -1;
+        }
+        if (count < 1 || count > MAX_BULK_ITEMS) {
+            System.err.println("\n✗ usage: " + parts[0] + " <count>, with count between 1 and " + MAX_BULK_ITEMS
+                    + ", then one item per line");
+            prompt();
+            return;
+        }
+
+        List<String> items = new ArrayList<>(count);
+        while (items.size() < count) {
+            System.out.print("item " + (items.size() + 1) + "/" + count + "> ");
+            if (!scanner.hasNextLine()) {
+                return;
+            }
+            items.add(scanner.nextLine().trim());
+        }
+        client.sendBulk(parts[0], items).whenComplete(this::printResponse);
     }
 
     public static void main(String[] args) {
         if (args.length < 2) {
-            System.err.println("Usage: TCPClient <hostname> <port>");
-            System.err.println("Example: TCPClient localhost 8080");
+            System.err.println("Usage: TCPClient <hostname> <port> [deflate|fast|none]");
+            System.err.println("Example: TCPClient localhost 8080 fast");
             System.err.println("After connecting, type commands like:");
             System.err.println("  login <username> <password>");
             System.err.println("  register <username> <password>");
@@ -99,117 +244,57 @@ public class TCPClient {
         String hostName = args[0];
         int port = Integer.parseInt(args[1]);
 
-        TCPClient client = new TCPClient();
+        TCPClient console = new TCPClient(hostName, port);
+        if (args.length > 2) {
+            console.client.setCompression(args[2]);
+        }
         Scanner scanner = new Scanner(System.in);
 
         try {
-            client.connect(hostName, port);
-            client.startMessageReceiver();
-            
-            System.out.println("Connected! Type commands:");
+            console.connect();
+
+            System.out.println("Type commands:");
             System.out.println("  login <username> <password>");
             System.out.println("  register <username> <password>");
-                    System.out.println("Type 'quit' or 'exit' to disconnect.\n");
-                    System.out.print("> ");
-            
+            System.out.println("Type 'quit' or 'exit' to disconnect.\n");
+
             // Interactive command input
-            String userInput;
-            while (client.running && scanner.hasNextLine()) {
-                userInput = scanner.nextLine().trim();
-                
+            while (console.running && scanner.hasNextLine()) {
+                String userInput = scanner.nextLine().trim();
+
                 if (userInput.isEmpty()) {
-                    System.out.print("> ");
+                    prompt();
                     continue;
                 }
-                
+
                 if (userInput.equalsIgnoreCase("quit") || userInput.equalsIgnoreCase("exit")) {
                     System.out.println("Disconnecting...");
-                    client.running = false;
-                    
-                    try {
-                        if (client.socket != null && !client.socket.isClosed()) {
-                            client.socket.shutdownInput();
-                            client.socket.close();
-                        }
-                    } catch (IOException e) {
-                        // Ignore
-                    }
-                    
-                    try {
-                        client.disconnect();
-                    } catch (IOException e) {
-                        // Ignore
-                    }
-                    
-                    if (scanner != null) {
-                        scanner.close();
-                    }
-                    
-                    System.exit(0);
+                    break;
                 }
-                
-                // Handle login/register commands
+
                 if (userInput.startsWith("login ") || userInput.startsWith("register ")) {
-                    client.sendMessage(userInput);
-                    client.responseReceived = false;
-                    client.lastResponse = null;
-                    
-                    // Wait for response
-                    int waitCount = 0;
-                    while (!client.responseReceived && waitCount < 20) {
-                        try {
-                            Thread.sleep(100);
-                            waitCount++;
-                        } catch (InterruptedException e) {
-                            break;
-                        }
-                    }
-                    
-                    // Check response
-                        if (client.lastResponse != null) {
-                            if (client.lastResponse.equals("LOGIN OK") || client.lastResponse.equals("REGISTER OK")) {
-                                System.out.println("\n✓ " + (userInput.startsWith("login") ? "Login" : "Registration") + " successful!");
-                                System.out.println("Available commands:");
-                                System.out.println("  send #<channel> <message>  (e.g., send #general Hello)");
-                                System.out.println("  send @<username> <message>  (e.g., send @alice Hello)");
-                                System.out.println("  createTask <task_description>");
-                                System.out.println("  assignTask <task_id> <username>");
-                                System.out.println("  viewTasks");
-                                System.out.println("  sendFile user <receiver> <file_name>");
-                                System.out.print("\n> ");
-                        } else if (client.lastResponse.equals("LOGIN FAILED")) {
-                            System.err.println("\n✗ Login failed. Check username/password or register first.");
-                    System.out.print("> ");
+                    console.handleLoginOrRegister(userInput);
+                } else if (userInput.startsWith("sendFile ")) {
+                    console.handleSendFile(userInput);
+                } else if (userInput.startsWith("getFile ")) {
+                    console.handleGetFile(userInput);
+                } else if (userInput.startsWith("bulkCreateTasks") || userInput.startsWith("bulkAssignTasks")) {
+                    console.handleBulk(userInput, scanner);
+                } else if (userInput.startsWith("compress") || userInput.startsWith("resumeFile")) {
+                    // both change what goes over the wire next; only ChatClient can do that
+                    System.err.println("\n✗ " + userInput.split("\\s+")[0] + " cannot be typed here"
+                            + (userInput.startsWith("compress") ? "; pass the mode as the third argument instead." : "."));
+                    prompt();
                 } else {
-                            System.err.println("\n✗ " + client.lastResponse);
-                            System.out.print("> ");
-                        }
-                    } else {
-                        System.err.println("\n✗ No response from server.");
-                    System.out.print("> ");
-                    }
-                    continue;
+                    console.client.send(userInput).whenComplete(console::printResponse);
                 }
-                
-                // Send other commands to server
-                client.sendMessage(userInput);
-                System.out.print("> ");
             }
-            
         } catch (Exception e) {
             System.err.println("Client error: " + e.getMessage());
             e.printStackTrace();
         } finally {
-            if (client.running) {
-                try {
-                    client.disconnect();
-                } catch (IOException e) {
-                    // Ignore
-                }
-            }
-            if (scanner != null) {
-                scanner.close();
-            }
+            console.disconnect();
+            scanner.close();
         }
     }
-}
\ No newline at end of file
+}